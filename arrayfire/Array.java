@@ -5,7 +5,6 @@ import arrayfire.numbers.Num;
 import arrayfire.numbers.U;
 
 import java.lang.foreign.AddressLayout;
-import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
 import java.util.function.Function;
@@ -16,7 +15,20 @@ public class Array<T extends DataType<?>, S extends Shape<?, ?, ?, ?>> implement
     public static final AddressLayout LAYOUT = ValueLayout.ADDRESS;
     private final T type;
     private final S shape;
-    private final MemorySegment segment;
+    // Holds the af_array pointer, pooled rather than allocated per array, see HandlePool.
+    private MemorySegment segment;
+    private Operation producer;
+    // Set while the array's values are held in pinned host memory instead of on the device, see Spill.
+    private MemorySegment spilled;
+    private long lastUse;
+    // The depth and node count of the JIT tree producing the array, 0 once it is evaluated, see EvalPolicy.
+    private int jitDepth;
+    private int jitNodes;
+    private Scope owner;
+    // Set while the array's bytes count towards its owner's, which is only once its values exist, see Scope#account.
+    private boolean accounted;
+    // Set once the array is registered for release when unreachable, see AutoRelease.
+    private AutoRelease.Cleanup cleanup;
 
     public Array(Prototype<T, S> prototype) {
         this(prototype.type(), prototype.shape());
@@ -25,18 +37,46 @@ public class Array<T extends DataType<?>, S extends Shape<?, ?, ?, ?>> implement
     Array(T type, S shape) {
         this.type = type;
         this.shape = shape;
-        this.segment = Arena.ofAuto().allocate(LAYOUT);
+        this.segment = HandlePool.acquire();
     }
 
     MemorySegment segment() {
         return segment;
     }
 
+    void producer(Operation producer) {
+        this.producer = producer;
+    }
+
+    /**
+     * @return the operation that produces this array, or null if it was not created by an operation.
+     */
+    public Operation producer() {
+        return producer;
+    }
+
     /**
      * @return the wrapped void* pointer of the C af_array.
      */
     public MemorySegment dereference() {
+        if (segment == HandlePool.RELEASED) {
+            throw new IllegalStateException(String.format("Cannot dereference a released array %s", shape));
+        }
+        lastUse = Spill.now();
+        if (spilled != null) {
+            Spill.restore(this);
+        }
+        // Resolve the producer before reading the cell, which a dispatch thread may be writing concurrently.
+        if (producer != null && !producer.executed() && !Scope.tracing()) {
+            // The producing operation was recorded lazily or queued on a dispatch thread, so execute or await it now
+            // that the value is needed.
+            producer.apply();
+        }
         var value = segment.get(LAYOUT, 0L);
+        if (MemorySegment.NULL.equals(value) && Scope.tracing()) {
+            throw new IllegalStateException(String.format(
+                "Cannot read the values of %s while tracing a plan, they only exist once the plan is replayed", shape));
+        }
         if (MemorySegment.NULL.equals(value)) {
             throw new IllegalStateException(
                 String.format("Cannot dereference an uninitialized segment (nullptr) %s", shape));
@@ -45,13 +85,85 @@ public class Array<T extends DataType<?>, S extends Shape<?, ?, ?, ?>> implement
     }
 
     public boolean materialized() {
-        return !MemorySegment.NULL.equals(segment.get(LAYOUT, 0L));
+        return spilled != null || !MemorySegment.NULL.equals(segment.get(LAYOUT, 0L));
+    }
+
+    MemorySegment spilled() {
+        return spilled;
+    }
+
+    void spilled(MemorySegment spilled) {
+        this.spilled = spilled;
+        if (cleanup != null) {
+            cleanup.spilled(spilled);
+        }
+    }
+
+    AutoRelease.Cleanup cleanup() {
+        return cleanup;
+    }
+
+    void cleanup(AutoRelease.Cleanup cleanup) {
+        this.cleanup = cleanup;
+    }
+
+    /**
+     * Returns the time the array was last dereferenced, see {@link Spill#now()}.
+     */
+    long lastUse() {
+        return lastUse;
+    }
+
+    /**
+     * Marks the array as used now, e.g. once its values have been written.
+     */
+    void used() {
+        lastUse = Spill.now();
+    }
+
+    int jitDepth() {
+        return jitDepth;
+    }
+
+    int jitNodes() {
+        return jitNodes;
+    }
+
+    void jit(int depth, int nodes) {
+        this.jitDepth = depth;
+        this.jitNodes = nodes;
     }
 
     public int capacity() {
         return shape.capacity();
     }
 
+    /**
+     * Returns the number of bytes the array's values take up on the device.
+     */
+    long bytes() {
+        return shape.capacity() * type.meta().layout().byteSize();
+    }
+
+    /**
+     * Returns the scope that owns this array, if any.
+     */
+    Scope owner() {
+        return owner;
+    }
+
+    void owner(Scope owner) {
+        this.owner = owner;
+    }
+
+    boolean accounted() {
+        return accounted;
+    }
+
+    void accounted(boolean accounted) {
+        this.accounted = accounted;
+    }
+
     public S shape() {
         return shape;
     }
@@ -143,6 +255,20 @@ public class Array<T extends DataType<?>, S extends Shape<?, ?, ?, ?>> implement
         af.release(this);
     }
 
+    /**
+     * Returns the cell holding the af_array pointer to the pool. Must only be called once the array will never be
+     * read or written again.
+     */
+    void recycle() {
+        if (segment != HandlePool.RELEASED) {
+            if (cleanup != null) {
+                cleanup.cancel();
+            }
+            HandlePool.recycle(segment);
+            segment = HandlePool.RELEASED;
+        }
+    }
+
     Array<T, S> retain() {
         return af.retain(this);
     }
@@ -0,0 +1,205 @@
+package arrayfire;
+
+import arrayfire.capi.arrayfire_h;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes named arrays in a binary format that can be memory-mapped and read in place, see
+ * {@link ArrayFire#save} and {@link ArrayFire#load}. Every field is little-endian:
+ * <pre>
+ * offset  size  field
+ * 0       4     magic "AFJA"
+ * 4       4     version, 1
+ * 8       4     number of entries
+ * 12      4     reserved, 0
+ * 16      64*n  entries, each:
+ *               0   4   type code, see {@link DataType#code()}
+ *               4   4   number of dimensions
+ *               8   32  the four dimensions, see {@link Shape#dims()}
+ *               40  8   offset of the data from the start of the file, a multiple of 64
+ *               48  8   size of the data in bytes
+ *               56  4   offset of the name from the start of the file
+ *               60  4   size of the UTF-8 encoded name in bytes
+ * </pre>
+ * The names follow the entries, and the data of each array follows the names in column-major order, as on the device.
+ */
+class ArrayFile {
+
+    private static final int MAGIC = 'A' | 'F' << 8 | 'J' << 16 | 'A' << 24;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 16;
+    private static final int ENTRY_BYTES = 64;
+    private static final int ALIGNMENT = 64;
+    private static final ValueLayout.OfInt INT = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Writes the given arrays, copying each one from the device through a single pinned staging buffer.
+     */
+    static void save(Path path, Map<String, ? extends Array<?, ?>> arrays) {
+        var names = new ArrayList<byte[]>();
+        var entries = ByteBuffer.allocate(HEADER_BYTES + ENTRY_BYTES * arrays.size()).order(ByteOrder.LITTLE_ENDIAN);
+        entries.putInt(MAGIC).putInt(VERSION).putInt(arrays.size()).putInt(0);
+        long offset = entries.capacity();
+        for (var name : arrays.keySet()) {
+            names.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        var nameOffset = offset;
+        for (var name : names) {
+            offset += name.length;
+        }
+        long stagingBytes = 0;
+        var index = 0;
+        for (var array : arrays.values()) {
+            offset = align(offset);
+            var dims = array.shape().dims();
+            entries.putInt(array.type().code()).putInt(array.shape().ndims());
+            for (int i = 0; i < 4; i++) {
+                entries.putLong(i < dims.length ? dims[i] : 1);
+            }
+            entries.putLong(offset).putLong(array.bytes()).putInt((int) nameOffset).putInt(names.get(index).length);
+            nameOffset += names.get(index).length;
+            offset += array.bytes();
+            stagingBytes = Math.max(stagingBytes, array.bytes());
+            index++;
+        }
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+            write(channel, entries.flip());
+            for (var name : names) {
+                write(channel, ByteBuffer.wrap(name));
+            }
+            var staging = af.allocPinned(Math.max(1, stagingBytes));
+            try {
+                for (var array : arrays.values()) {
+                    ArrayFire.handleStatus(() -> arrayfire_h.af_get_data_ptr(staging, array.dereference()));
+                    channel.position(align(channel.position()));
+                    write(channel, staging.asSlice(0, array.bytes()).asByteBuffer());
+                }
+            } finally {
+                af.freePinned(staging);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Reads every array of the given file into the current scope, uploading each one straight from the memory-mapped
+     * file.
+     */
+    static Map<String, Array<?, ?>> load(Path path) {
+        var result = new LinkedHashMap<String, Array<?, ?>>();
+        try (var arena = Arena.ofConfined(); var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            if (file.byteSize() < HEADER_BYTES || file.get(INT, 0) != MAGIC) {
+                throw new IllegalArgumentException(String.format("%s is not an array file", path));
+            }
+            if (file.get(INT, 4) != VERSION) {
+                throw new IllegalArgumentException(
+                    String.format("Unsupported array file version %d in %s", file.get(INT, 4), path));
+            }
+            var count = file.get(INT, 8);
+            if (count < 0 || HEADER_BYTES + (long) count * ENTRY_BYTES > file.byteSize()) {
+                throw new IllegalArgumentException(String.format("Invalid entry count %d in %s", count, path));
+            }
+            for (int i = 0; i < count; i++) {
+                var entry = file.asSlice(HEADER_BYTES + (long) i * ENTRY_BYTES, ENTRY_BYTES);
+                var code = entry.get(INT, 0);
+                var type = ArrayFire.dataType(code);
+                var ndims = entry.get(INT, 4);
+                if (ndims < 1 || ndims > 4) {
+                    throw new IllegalArgumentException(
+                        String.format("Invalid number of dimensions %d of entry %d in %s", ndims, i, path));
+                }
+                var dims = new int[4];
+                long capacity = 1;
+                for (int d = 0; d < 4; d++) {
+                    var dim = entry.get(LONG, 8 + 8L * d);
+                    // Dimensions past the number of dimensions are unit dimensions.
+                    if (dim <= 0 || dim > Integer.MAX_VALUE || (d >= ndims && dim != 1)) {
+                        throw new IllegalArgumentException(
+                            String.format("Invalid dimension %d of entry %d in %s", dim, i, path));
+                    }
+                    dims[d] = (int) dim;
+                    capacity *= dim;
+                    if (capacity > Integer.MAX_VALUE) {
+                        throw new IllegalArgumentException(String.format("Entry %d in %s is too large", i, path));
+                    }
+                }
+                var dataOffset = entry.get(LONG, 40);
+                var dataBytes = entry.get(LONG, 48);
+                if (dataBytes != capacity * type.meta().layout().byteSize() || !within(file, dataOffset, dataBytes)) {
+                    throw new IllegalArgumentException(
+                        String.format("Invalid data of %d bytes at %d of entry %d in %s", dataBytes, dataOffset, i,
+                            path));
+                }
+                var nameOffset = Integer.toUnsignedLong(entry.get(INT, 56));
+                var nameLength = Integer.toUnsignedLong(entry.get(INT, 60));
+                if (!within(file, nameOffset, nameLength)) {
+                    throw new IllegalArgumentException(String.format("Invalid name of entry %d in %s", i, path));
+                }
+                var data = file.asSlice(dataOffset, dataBytes);
+                var nameBytes = file.asSlice(nameOffset, nameLength).toArray(ValueLayout.JAVA_BYTE);
+                var name = new String(nameBytes, StandardCharsets.UTF_8);
+                var array = new Array<>(type, shape(ndims, dims));
+                try (var scratch = Scratch.open()) {
+                    var nativeDims = scratch.allocateArray(ValueLayout.JAVA_LONG, 4);
+                    for (int d = 0; d < 4; d++) {
+                        nativeDims.setAtIndex(ValueLayout.JAVA_LONG, d, dims[d]);
+                    }
+                    ArrayFire.handleStatus(
+                        () -> arrayfire_h.af_create_array(array.segment(), data, ndims, nativeDims, code));
+                }
+                af.scope().register(array);
+                result.put(name, array);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a shape with the given number of dimensions, the rest being unit dimensions.
+     */
+    private static Shape<?, ?, ?, ?> shape(int ndims, int[] dims) {
+        return switch (ndims) {
+            case 1 -> af.shape(dims[0]);
+            case 2 -> af.shape(dims[0], dims[1]);
+            case 3 -> af.shape(dims[0], dims[1], dims[2]);
+            default -> af.shape(dims[0], dims[1], dims[2], dims[3]);
+        };
+    }
+
+    /**
+     * Returns true if the given range lies within the file.
+     */
+    private static boolean within(MemorySegment file, long offset, long bytes) {
+        return offset >= 0 && bytes >= 0 && offset <= file.byteSize() - bytes;
+    }
+
+    private static long align(long offset) {
+        return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
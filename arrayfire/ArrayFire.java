@@ -6,15 +6,27 @@ import arrayfire.optimizers.OptimizerProvider;
 import arrayfire.utils.Functions;
 import arrayfire.utils.Reference;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.lang.foreign.Arena;
-import java.lang.foreign.MemoryLayout;
 import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.StructuredTaskScope;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.IntSupplier;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 import java.util.stream.IntStream;
 
 public class ArrayFire {
@@ -34,35 +46,50 @@ public class ArrayFire {
     public static final arrayfire.D2 D2 = new D2();
     public static final arrayfire.D3 D3 = new D3();
     public static final U U = new U(1);
-    private static boolean successfullyLoadedLibraries = false;
+    // Values of af_mat_prop.
+    private static final int MAT_NONE = 0;
+    private static final int MAT_TRANS = 1;
+    private static NativeMemoryManager memoryManager;
 
-    private static void maybeLoadNativeLibraries() {
-        if (successfullyLoadedLibraries) {
-            return;
+    /**
+     * Loads the native libraries the first time any native call is made, when this class is initialized. Class
+     * initialization runs exactly once, so later calls pay nothing to check it.
+     */
+    private static final class NativeLibraries {
+
+        private static final RuntimeException failure = load();
+
+        static void ensureLoaded() {
+            if (failure != null) {
+                throw failure;
+            }
         }
-        var libraries = List.of("af", "afcuda", "afopencl", "afcpu");
-        Throwable firstThrowable = null;
-        for (var library : libraries) {
-            try {
-                System.loadLibrary(library);
-                successfullyLoadedLibraries = true;
-                tidy(() -> {
-                    var version = version();
-                    if (version.major() < 3 || (version.major() == 3 && version.minor() < 8)) {
-                        throw new IllegalStateException(
-                            String.format("Unsupported ArrayFire version, should be >= 3.8.0: %s", version));
+
+        private static RuntimeException load() {
+            var libraries = List.of("af", "afcuda", "afopencl", "afcpu");
+            Throwable firstThrowable = null;
+            for (var library : libraries) {
+                try {
+                    System.loadLibrary(library);
+                    // Calls back into ensureLoaded, which returns straight away while this class is initializing.
+                    tidy(() -> {
+                        var version = version();
+                        if (version.major() < 3 || (version.major() == 3 && version.minor() < 8)) {
+                            throw new IllegalStateException(
+                                String.format("Unsupported ArrayFire version, should be >= 3.8.0: %s", version));
+                        }
+                    });
+                    return null;
+                } catch (Throwable throwable) {
+                    if (firstThrowable == null) {
+                        firstThrowable = throwable;
                     }
-                });
-                return;
-            } catch (Throwable throwable) {
-                if (firstThrowable == null) {
-                    firstThrowable = throwable;
                 }
             }
+            return new RuntimeException(
+                "Failed to load ArrayFire native libraries, make sure it is installed at the required version.",
+                firstThrowable);
         }
-        throw new RuntimeException(
-            "Failed to load ArrayFire native libraries, make sure it is installed at the required version.",
-            firstThrowable);
     }
 
     /**
@@ -76,10 +103,110 @@ public class ArrayFire {
      * Executes the given function in a new scope, and disposes of all memory allocated in that scope except the value returned by the function if it is manually managed memory container.
      */
     public static <T> T tidy(Supplier<T> fn) {
+        var parentScope = scope();
+        return tidy(fn, parentScope != null && parentScope.lazy());
+    }
+
+    /**
+     * Executes the given function in a new scope that may hold at most the given number of device bytes across itself
+     * and its nested scopes, e.g. to stop one request from starving others of device memory. Exceeding the budget
+     * spills idle arrays of the scope to host memory, then throws a {@link MemoryBudgetException} if that isn't
+     * enough. See {@link Scope#liveBytes()} and {@link Scope#nestedPeakBytes()} for what a scope holds.
+     */
+    public static void tidy(long budgetBytes, Runnable fn) {
+        Scope.tidy(fn, budgetBytes);
+    }
+
+    /**
+     * Executes the given function in a new scope with a memory budget, see {@link #tidy(long, Runnable)}, and disposes
+     * of all memory allocated in that scope except the value returned by the function if it is manually managed memory
+     * container.
+     */
+    public static <T> T tidy(long budgetBytes, Supplier<T> fn) {
+        return tidy(fn, body -> Scope.tidy(body, budgetBytes));
+    }
+
+    /**
+     * Executes the given function in a new memory scope that evaluates the JIT trees built by element-wise operations
+     * in batches once they exceed the limits of the given policy, and disposes of all memory allocated in that scope
+     * afterward. Keeps kernel sizes, and so compile and launch times, predictable in long loops.
+     */
+    public static void tidy(EvalPolicy evalPolicy, Runnable fn) {
+        Scope.tidy(fn, evalPolicy);
+    }
+
+    /**
+     * Executes the given function in a new memory scope with an eval policy, see {@link #tidy(EvalPolicy, Runnable)},
+     * and disposes of all memory allocated in that scope except the value returned by the function if it is manually
+     * managed memory container.
+     */
+    public static <T> T tidy(EvalPolicy evalPolicy, Supplier<T> fn) {
+        return tidy(fn, body -> Scope.tidy(body, evalPolicy));
+    }
+
+    /**
+     * Executes the given function in a new lazy scope, where operations are only recorded and are executed once a value
+     * is needed (e.g. {@link #data}, {@link #eval}, {@link #sync}, {@link #optimize}) or when the scope exits.
+     */
+    public static void lazy(Runnable fn) {
+        Scope.tidy(fn, true);
+    }
+
+    /**
+     * Executes the given function in a new lazy scope, see {@link #lazy(Runnable)}, and disposes of all memory allocated
+     * in that scope except the value returned by the function if it is manually managed memory container.
+     */
+    public static <T> T lazy(Supplier<T> fn) {
+        return tidy(fn, true);
+    }
+
+    /**
+     * Executes the given function in a new inference scope, where operations are executed straight away without
+     * recording anything needed for gradients: no inputs, gradient functions or tape entries are kept, so nothing but
+     * the arrays themselves accumulates in long-lived scopes. Gradients can't be computed through operations run in
+     * an inference scope.
+     */
+    public static void inference(Runnable fn) {
+        Scope.inference(fn);
+    }
+
+    /**
+     * Executes the given function in a new inference scope, see {@link #inference(Runnable)}, and disposes of all
+     * memory allocated in that scope except the value returned by the function if it is manually managed memory
+     * container.
+     */
+    public static <T> T inference(Supplier<T> fn) {
+        return tidy(fn, Scope::inference);
+    }
+
+    /**
+     * Executes the given function in a new async scope, where operations are applied in order on a dedicated dispatch
+     * thread while this thread carries on building the graph. This thread only waits for the dispatch thread when it
+     * needs a value that hasn't been produced yet (e.g. {@link #data}, {@link #sync}, {@link #eval}), releases arrays,
+     * or exits the scope. Failures on the dispatch thread are rethrown by the next wait in the async scope that
+     * submitted the failed operation.
+     */
+    public static void async(Runnable fn) {
+        Scope.async(fn);
+    }
+
+    /**
+     * Executes the given function in a new async scope, see {@link #async(Runnable)}, and disposes of all memory
+     * allocated in that scope except the value returned by the function if it is manually managed memory container.
+     */
+    public static <T> T async(Supplier<T> fn) {
+        return tidy(fn, Scope::async);
+    }
+
+    private static <T> T tidy(Supplier<T> fn, boolean lazy) {
+        return tidy(fn, body -> Scope.tidy(body, lazy));
+    }
+
+    private static <T> T tidy(Supplier<T> fn, Consumer<Runnable> scope) {
         var parentScope = scope();
         var resultReference = new Reference<T>();
-        tidy(() -> {
-            var result = (T) fn.get();
+        scope.accept(() -> {
+            var result = fn.get();
             if (result instanceof MemoryContainer mc) {
                 Scope.move(mc, parentScope);
             }
@@ -88,6 +215,112 @@ public class ArrayFire {
         return resultReference.get();
     }
 
+    /**
+     * Runs each of the given functions in its own scope on a new virtual thread and waits for all of them, e.g. to
+     * overlap host preprocessing, uploads and independent branches of a model. Each result is moved into the current
+     * scope once every function has completed. If any function fails, the others are cancelled, every result is
+     * disposed of and the failure is rethrown.
+     * <p>
+     * The functions may read arrays from enclosing scopes, but they are not executed on the current thread, so they
+     * must not rely on any thread-local state other than the current scope and device. Inside {@link #compile} the
+     * functions are simply run one after the other.
+     */
+    public static <T extends MemoryContainer> List<T> tidyAll(List<Supplier<T>> fns) {
+        var parentScope = requireScope("tidyAll");
+        if (parentScope.trace() != null) {
+            return fns.stream().map(fn -> tidy(fn)).toList();
+        }
+        // Pending operations of enclosing scopes must not be executed from several threads at once.
+        parentScope.flushAll();
+        var device = deviceId();
+        var lazy = parentScope.lazy();
+        // Results that have left their subtask's scope but haven't been moved into the parent scope yet.
+        var produced = new ConcurrentLinkedQueue<MemoryContainer>();
+        List<T> results = null;
+        try (var tasks = new StructuredTaskScope.ShutdownOnFailure()) {
+            var subtasks = fns.stream().map(fn -> tasks.fork(() -> {
+                setDeviceId(device);
+                var resultReference = new Reference<T>();
+                Scope.tidy(() -> {
+                    var result = fn.get();
+                    // Scopes are confined to their thread, so the parent scope only takes ownership once joined.
+                    Scope.detach(result);
+                    produced.add(result);
+                    resultReference.set(result);
+                }, lazy);
+                return resultReference.get();
+            })).toList();
+            tasks.join().throwIfFailed(
+                failure -> failure instanceof RuntimeException e ? e : new IllegalStateException(failure));
+            results = subtasks.stream().map(StructuredTaskScope.Subtask::get).toList();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } finally {
+            // Every subtask has finished by now, so nothing else can be added.
+            if (results == null) {
+                produced.forEach(MemoryContainer::dispose);
+            }
+        }
+        results.forEach(parentScope::register);
+        return results;
+    }
+
+    /**
+     * Runs the given block in a new scope, keeping only its result: all of the block's intermediate arrays are released
+     * as soon as it returns. If gradients later flow back through the result, the block is run again to rebuild its
+     * intermediates, which are released again once its input gradients are computed. This trades extra compute in the
+     * backward pass for a smaller activation footprint.
+     * <p>
+     * The block must be deterministic and only read arrays that outlive it. Inside {@link #compile} the block is
+     * simply inlined, since plans manage their own memory.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static <R extends Array<?, ?>> R checkpoint(Supplier<R> fn) {
+        var parentScope = requireScope("checkpoint");
+        if (parentScope.trace() != null) {
+            return fn.get();
+        }
+        var inputs = new ArrayList<Array<?, ?>>();
+        var result = tidy(() -> {
+            var blockScope = scope();
+            var blockResult = fn.get();
+            // Arrays owned by the block but not produced on its tape come from nested tidies, and can't carry gradients.
+            blockScope
+                .tape()
+                .externalInputs()
+                .stream()
+                .filter(input -> !blockScope.owns(input))
+                .forEach(input -> inputs.add((Array<?, ?>) input));
+            return blockResult;
+        });
+        return (R) operation("checkpoint")
+                       .confined()
+                       .inputs(inputs)
+                       .outputs(prototype(result.type(), result.shape()))
+                       .operation(ptr -> {
+                           ptr.copyFrom(result.segment());
+                           Scope.detach(result);
+                           return Status.AF_SUCCESS.code();
+                       })
+                       .grads((checkpointResult, grads, required) -> {
+                           var targets = inputs.stream().filter(required).toArray(Array[]::new);
+                           var outerScope = scope();
+                           var inputGrads = new IdentityHashMap<Array, Array>();
+                           tidy(() -> {
+                               var recomputed = fn.get();
+                               var blockGrads = scope().tape().gradsFrom(recomputed, grads, targets);
+                               for (var target : targets) {
+                                   var inputGrad = blockGrads.get(target);
+                                   Scope.move(inputGrad, outerScope);
+                                   inputGrads.put(target, inputGrad);
+                               }
+                           });
+                           return inputs.stream().<Array<?, ?>>map(inputGrads::get).toList();
+                       })
+                       .build();
+    }
+
     /**
      * Returns the current scope of the thread.
      */
@@ -95,6 +328,18 @@ public class ArrayFire {
         return Scope.current();
     }
 
+    /**
+     * Returns the current scope, throwing if there is none, for functions that move their results into it.
+     */
+    private static Scope requireScope(String function) {
+        var scope = scope();
+        if (scope == null) {
+            throw new IllegalStateException(
+                String.format("%s must be called inside a scope, e.g. within af.tidy", function));
+        }
+        return scope;
+    }
+
     /**
      * Sorts a array over D0.
      */
@@ -208,15 +453,12 @@ public class ArrayFire {
      * Creates a device array from the given type and java native array.
      * This is not recommended in a production setting, as memory will be copied twice. Instead, use {@link #create(HostArray)}.
      */
-    @SuppressWarnings("unchecked")
     public static <JTA, JT, DTM extends DataType.Meta<?, JT, JTA>, DT extends DataType<DTM>> Array<DT, Shape<N, U, U, U>> create(
         DT type, JTA values) {
         return tidy(() -> {
             var length = java.lang.reflect.Array.getLength(values);
             var array = createHost(type, shape(length), false);
-            for (int i = 0; i < length; i++) {
-                array.set(i, (JT) java.lang.reflect.Array.get(values, i));
-            }
+            type.meta().copyFromHeap(values, 0, array.segment(), 0, length);
             return create(array);
         });
     }
@@ -297,6 +539,127 @@ public class ArrayFire {
         return result;
     }
 
+    /**
+     * Creates a read-only host array backed by the given file, starting at the given byte offset, which must be a
+     * multiple of the type's element size. The file is memory-mapped rather than read, so {@link #create(HostArray)}
+     * uploads straight from the page cache without a copy on the Java heap. The file is unmapped once the host array
+     * is disposed of.
+     */
+    public static <JT, DTM extends DataType.Meta<?, JT, ?>, DT extends DataType<DTM>, S extends Shape<?, ?, ?, ?>> HostArray<DT, JT, S> mapHost(
+        DT type, S shape, Path path, long offset) {
+        var elementBytes = type.meta().layout().byteSize();
+        if (offset < 0 || offset % elementBytes != 0) {
+            throw new IllegalArgumentException(
+                String.format("Offset must be a non-negative multiple of %d bytes but was %d", elementBytes, offset));
+        }
+        var bytes = shape.capacity() * elementBytes;
+        var arena = Arena.ofShared();
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (offset + bytes > channel.size()) {
+                throw new IllegalArgumentException(
+                    String.format("Expected at least %d bytes in %s but it has %d", offset + bytes, path,
+                        channel.size()));
+            }
+            var result = new HostArray<>(type, shape, arena,
+                channel.map(FileChannel.MapMode.READ_ONLY, offset, bytes, arena));
+            scope().register(result);
+            return result;
+        } catch (IOException e) {
+            arena.close();
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            arena.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a loader of shuffled, prefetched batches of host datasets, see {@link DataLoader}, which is disposed of
+     * with the current scope.
+     *
+     * @param seed the seed of the per-epoch shuffles.
+     */
+    public static DataLoader dataLoader(int batchSize, long seed) {
+        var result = new DataLoader(batchSize, seed);
+        scope().register(result);
+        return result;
+    }
+
+    /**
+     * Writes the given arrays to a file that {@link #load} reads back, e.g. to persist {@link Params}. The format is
+     * aligned and described by a fixed-size header, so it can be memory-mapped and read in place, see
+     * {@link ArrayFile}.
+     */
+    public static void save(Path path, Map<String, ? extends Array<?, ?>> arrays) {
+        ArrayFile.save(path, arrays);
+    }
+
+    /**
+     * Reads the arrays written by {@link #save} into the current scope, by name in the order they were written. The
+     * file is memory-mapped, so each array is uploaded straight from the page cache.
+     */
+    public static Map<String, Array<?, ?>> load(Path path) {
+        return ArrayFile.load(path);
+    }
+
+    /**
+     * Reads a NumPy .npy file into a host array in the current scope, see {@link NumPy}. The file is memory-mapped
+     * rather than read. A C-ordered array has its dimensions reversed, so the rows of a (samples, features) array are
+     * the columns of a (features, samples) host array, as {@link DataLoader} expects.
+     */
+    public static HostArray<?, ?, ?> loadNpy(Path path) {
+        var result = NumPy.loadNpy(path);
+        scope().register(result);
+        return result;
+    }
+
+    /**
+     * Reads every array of an uncompressed NumPy .npz archive into host arrays in the current scope, by name in the
+     * order they were written, see {@link #loadNpy}.
+     */
+    public static Map<String, HostArray<?, ?, ?>> loadNpz(Path path) {
+        var result = NumPy.loadNpz(path);
+        var scope = scope();
+        result.values().forEach(scope::register);
+        return result;
+    }
+
+    /**
+     * Writes the given host array to a NumPy .npy file in Fortran order, so NumPy sees the same dimensions.
+     */
+    public static void saveNpy(Path path, HostArray<?, ?, ?> array) {
+        NumPy.saveNpy(path, array);
+    }
+
+    /**
+     * Writes the given host arrays to an uncompressed NumPy .npz archive, see {@link #saveNpy}.
+     */
+    public static void saveNpz(Path path, Map<String, ? extends HostArray<?, ?, ?>> arrays) {
+        NumPy.saveNpz(path, arrays);
+    }
+
+    /**
+     * Returns the data type with the given code, see {@link DataType#code()}.
+     */
+    static DataType<?> dataType(int code) {
+        var dataType = DataTypeEnum.fromCode(code);
+        if (dataType == null) {
+            throw new IllegalArgumentException(String.format("Unknown data type code %d", code));
+        }
+        return switch (dataType) {
+            case F32 -> F32;
+            case F64 -> F64;
+            case F16 -> F16;
+            case B8 -> B8;
+            case U8 -> U8;
+            case S32 -> S32;
+            case U32 -> U32;
+            case S64 -> S64;
+            case U64 -> U64;
+            default -> throw new IllegalArgumentException(String.format("Unsupported data type %s", dataType));
+        };
+    }
+
     @SafeVarargs
     public static <JT, DTM extends DataType.Meta<?, JT, ?>, DT extends DataType<DTM>> HostArray<DT, JT, Shape<N, U, U, U>> createHost(
         DT type, JT... values) {
@@ -319,7 +682,6 @@ public class ArrayFire {
         return hostArray;
     }
 
-    @SuppressWarnings("unchecked")
     public static <JT, JAT, DTM extends DataType.Meta<?, JT, JAT>, DT extends DataType<DTM>, S extends Shape<?, ?, ?, ?>> HostArray<DT, JT, S> createHost(
         DT type, S shape, boolean pinned, JAT values) {
         if (shape.capacity() != java.lang.reflect.Array.getLength(values)) {
@@ -327,11 +689,8 @@ public class ArrayFire {
                 String.format("Expected array with capacity of shape %d, but got %d", shape.capacity(),
                     java.lang.reflect.Array.getLength(values)));
         }
-        var length = java.lang.reflect.Array.getLength(values);
         var array = createHost(type, shape, pinned);
-        for (int i = 0; i < length; i++) {
-            array.set(i, (JT) java.lang.reflect.Array.get(values, i));
-        }
+        type.meta().copyFromHeap(values, 0, array.segment(), 0, shape.capacity());
         return array;
     }
 
@@ -366,6 +725,7 @@ public class ArrayFire {
     public static <DT extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<DT, S> constant(DT type, S shape,
                                                                                               double value) {
         return operation("constant")
+                   .pure(type.code(), shape, value)
                    .inputs()
                    .outputs(prototype(type, shape))
                    .operation(ptr -> arrayfire_h.af_constant(ptr, value, shape.ndims(), nativeDims(shape), type.code()))
@@ -377,6 +737,7 @@ public class ArrayFire {
      * Blocks until all operations on device are finished
      */
     public static void sync() {
+        flush();
         handleStatus(() -> arrayfire_h.af_sync(deviceId()));
     }
 
@@ -477,19 +838,29 @@ public class ArrayFire {
         return new Shape<>(d0.createDim(), d1.createDim(), d2.createDim(), d3.createDim());
     }
 
+    /**
+     * A native reduction along one dimension, e.g. af_sum, taking the dimension unboxed.
+     */
+    @FunctionalInterface
+    private interface Reduction {
+        int apply(MemorySegment result, MemorySegment input, int dim);
+    }
+
     private static <T extends DataType<?>, IT extends DataType<?>, D0 extends Num<D0>, D1 extends Num<D1>, D2 extends Num<D2>, D3 extends Num<D3>, S extends Shape<D0, D1, D2, D3>> Operation.Builder.Unary<Array<IT, S>>.Single<Array<T, Shape<U, D1, D2, D3>>> reduce(
-        String name, Array<IT, S> a, Functions.Function3<MemorySegment, MemorySegment, Integer, Integer> method,
+        String name, Array<IT, S> a, Reduction method,
         arrayfire.D0 dim, T resultType) {
         return operation(name)
+                   .pure(dim.index())
                    .inputs(a)
                    .outputs(prototype(resultType, shape(u(), a.shape().d1(), a.shape().d2(), a.shape().d3())))
                    .operation(ptr -> method.apply(ptr, a.dereference(), dim.index()));
     }
 
     private static <T extends DataType<?>, IT extends DataType<?>, D0 extends Num<D0>, D1 extends Num<D1>, D2 extends Num<D2>, D3 extends Num<D3>, S extends Shape<D0, D1, D2, D3>> Operation.Builder.Unary<Array<IT, S>>.Single<Array<T, Shape<D0, U, D2, D3>>> reduce(
-        String name, Array<IT, S> a, Functions.Function3<MemorySegment, MemorySegment, Integer, Integer> method,
+        String name, Array<IT, S> a, Reduction method,
         arrayfire.D1 dim, T resultType) {
         return operation(name)
+                   .pure(dim.index())
                    .inputs(a)
                    .outputs(prototype(resultType, shape(a.shape().d0(), u(), a.shape().d2(), a.shape().d3())))
                    .operation(ptr -> method.apply(ptr, a.dereference(), dim.index()));
@@ -497,18 +868,20 @@ public class ArrayFire {
     }
 
     private static <T extends DataType<?>, IT extends DataType<?>, D0 extends Num<D0>, D1 extends Num<D1>, D2 extends Num<D2>, D3 extends Num<D3>, S extends Shape<D0, D1, D2, D3>> Operation.Builder.Unary<Array<IT, S>>.Single<Array<T, Shape<D0, D1, U, D3>>> reduce(
-        String name, Array<IT, S> a, Functions.Function3<MemorySegment, MemorySegment, Integer, Integer> method,
+        String name, Array<IT, S> a, Reduction method,
         arrayfire.D2 dim, T resultType) {
         return operation(name)
+                   .pure(dim.index())
                    .inputs(a)
                    .outputs(prototype(resultType, shape(a.shape().d0(), a.shape().d1(), u(), a.shape().d3())))
                    .operation(ptr -> method.apply(ptr, a.dereference(), dim.index()));
     }
 
     private static <T extends DataType<?>, IT extends DataType<?>, D0 extends Num<D0>, D1 extends Num<D1>, D2 extends Num<D2>, D3 extends Num<D3>, S extends Shape<D0, D1, D2, D3>> Operation.Builder.Unary<Array<IT, S>>.Single<Array<T, Shape<D0, D1, D2, U>>> reduce(
-        String name, Array<IT, S> a, Functions.Function3<MemorySegment, MemorySegment, Integer, Integer> method,
+        String name, Array<IT, S> a, Reduction method,
         arrayfire.D3 dim, T resultType) {
         return operation(name)
+                   .pure(dim.index())
                    .inputs(a)
                    .outputs(prototype(resultType, shape(a.shape().d0(), a.shape().d1(), a.shape().d2(), u())))
                    .operation(ptr -> method.apply(ptr, a.dereference(), dim.index()));
@@ -524,6 +897,7 @@ public class ArrayFire {
             return (Array<OT, S>) input;
         }
         return operation("cast")
+                   .pure(type.code())
                    .inputs(input)
                    .outputs(prototype(type, input.shape()))
                    .operation(ptr -> arrayfire_h.af_cast(ptr, input.dereference(), type.code()))
@@ -587,6 +961,7 @@ public class ArrayFire {
     public static <T extends DataType<?>> Array<T, Shape<N, U, U, U>> range(T type, int n) {
         var shape = shape(n(n));
         return operation("range")
+                   .pure(type.code(), shape)
                    .inputs()
                    .outputs(prototype(type, shape))
                    .operation(ptr -> arrayfire_h.af_range(ptr, shape.ndims(), nativeDims(shape), 0, type.code()))
@@ -612,6 +987,7 @@ public class ArrayFire {
      */
     public static <JT, DTM extends DataType.Meta<?, JT, ?>, T extends DataType<DTM>, S extends Shape<?, ?, ?, ?>> HostArray<T, JT, S> data(
         Array<T, S> a) {
+        flush();
         var result = createHost(a.type(), a.shape(), false);
         handleStatus(() -> arrayfire_h.af_get_data_ptr(result.segment(), a.dereference()));
         return result;
@@ -620,10 +996,8 @@ public class ArrayFire {
     public static <JAT, DTM extends DataType.Meta<?, ?, JAT>, DT extends DataType<DTM>, HA extends HostArray<DT, ?, ?>> JAT heap(
         HA array) {
         var length = array.length();
-        var heapArray = array.type().meta().createHeapArray(array.shape().capacity());
-        for (int i = 0; i < length; i++) {
-            java.lang.reflect.Array.set(heapArray, i, array.get(i));
-        }
+        var heapArray = array.type().meta().createHeapArray(length);
+        array.type().meta().copyToHeap(array.segment(), 0, heapArray, 0, length);
         return heapArray;
     }
 
@@ -631,8 +1005,8 @@ public class ArrayFire {
      * Return the current version of arrayfire.
      */
     public static Version version() {
-        try (Arena arena = Arena.ofConfined()) {
-            var result = arena.allocateArray(ValueLayout.JAVA_INT, 3);
+        try (var scratch = Scratch.open()) {
+            var result = scratch.allocateArray(ValueLayout.JAVA_INT, 3);
             handleStatus(() -> arrayfire_h.af_get_version(result, result.asSlice(4), result.asSlice(8)));
             var arr = result.toArray(ValueLayout.JAVA_INT);
             return new Version(arr[0], arr[1], arr[2]);
@@ -643,8 +1017,8 @@ public class ArrayFire {
      * Return a set of the available backends. See {@link Backend} for all options.
      */
     public static Set<Backend> availableBackends() {
-        try (Arena arena = Arena.ofConfined()) {
-            var result = arena.allocate(ValueLayout.JAVA_INT);
+        try (var scratch = Scratch.open()) {
+            var result = scratch.allocate(ValueLayout.JAVA_INT);
             handleStatus(() -> arrayfire_h.af_get_available_backends(result));
             return Backend.fromBitmask(result.get(ValueLayout.JAVA_INT, 0));
         }
@@ -654,8 +1028,8 @@ public class ArrayFire {
      * Return the currently active backend.
      */
     public static Backend backend() {
-        try (Arena arena = Arena.ofConfined()) {
-            var result = arena.allocate(ValueLayout.JAVA_INT);
+        try (var scratch = Scratch.open()) {
+            var result = scratch.allocate(ValueLayout.JAVA_INT);
             handleStatus(() -> arrayfire_h.af_get_active_backend(result));
             return Backend.fromCode(result.get(ValueLayout.JAVA_INT, 0));
         }
@@ -672,8 +1046,8 @@ public class ArrayFire {
      * Return the currently active device ID.
      */
     public static int deviceId() {
-        try (Arena arena = Arena.ofConfined()) {
-            var result = arena.allocate(ValueLayout.JAVA_INT);
+        try (var scratch = Scratch.open()) {
+            var result = scratch.allocate(ValueLayout.JAVA_INT);
             handleStatus(() -> arrayfire_h.af_get_device(result));
             return result.get(ValueLayout.JAVA_INT, 0);
         }
@@ -690,8 +1064,8 @@ public class ArrayFire {
      * Return the number of devices available.
      */
     public static int deviceCount() {
-        try (Arena arena = Arena.ofConfined()) {
-            var result = arena.allocate(ValueLayout.JAVA_INT);
+        try (var scratch = Scratch.open()) {
+            var result = scratch.allocate(ValueLayout.JAVA_INT);
             handleStatus(() -> arrayfire_h.af_get_device_count(result));
             return result.get(ValueLayout.JAVA_INT, 0);
         }
@@ -701,19 +1075,22 @@ public class ArrayFire {
      * Return information about the currently active device.
      */
     public static DeviceInfo deviceInfo() {
-        try (Arena arena = Arena.ofConfined()) {
-            var name = arena.allocateArray(ValueLayout.JAVA_CHAR, 64);
-            var platform = arena.allocateArray(ValueLayout.JAVA_CHAR, 64);
-            var toolkit = arena.allocateArray(ValueLayout.JAVA_CHAR, 64);
-            var compute = arena.allocateArray(ValueLayout.JAVA_CHAR, 64);
+        try (var scratch = Scratch.open()) {
+            var name = scratch.allocateArray(ValueLayout.JAVA_CHAR, 64);
+            var platform = scratch.allocateArray(ValueLayout.JAVA_CHAR, 64);
+            var toolkit = scratch.allocateArray(ValueLayout.JAVA_CHAR, 64);
+            var compute = scratch.allocateArray(ValueLayout.JAVA_CHAR, 64);
             handleStatus(() -> arrayfire_h.af_device_info(name, platform, toolkit, compute));
             return new DeviceInfo(name.getUtf8String(0), platform.getUtf8String(0), toolkit.getUtf8String(0),
                 compute.getUtf8String(0));
         }
     }
 
+    /**
+     * Returns the dims of the given shape in scratch memory, so must only be called within a native call.
+     */
     private static MemorySegment nativeDims(Shape<?, ?, ?, ?> shape) {
-        return Arena.ofAuto().allocateArray(ValueLayout.JAVA_LONG, shape.dims());
+        return Scratch.current().allocateArray(ValueLayout.JAVA_LONG, shape.dims());
     }
 
     /**
@@ -722,6 +1099,7 @@ public class ArrayFire {
     public static <T extends DataType<?>, D0 extends Num<D0>, D1 extends Num<D1>, D2 extends Num<D2>, D3 extends Num<D3>, S extends Shape<D0, D1, D2, D3>> Array<T, Shape<D1, D0, D2, D3>> transpose(
         Array<T, S> array) {
         return operation("transpose")
+                   .pure()
                    .inputs(array)
                    .outputs(prototype(array.type(),
                        shape(array.shape().d1(), array.shape().d0(), array.shape().d2(), array.shape().d3())))
@@ -733,6 +1111,7 @@ public class ArrayFire {
     public static <T extends DataType<?>, D0 extends Num<D0>, D1 extends Num<D1>, D2 extends Num<D2>, D3 extends Num<D3>, S extends Shape<D0, D1, D2, D3>> Array<T, Shape<D0, D2, D1, D3>> transpose(
         Array<T, S> array, arrayfire.D1 d1, arrayfire.D2 d2) {
         return operation("transpose_D1_D2")
+                   .pure()
                    .inputs(array)
                    .outputs(prototype(array.type(),
                        shape(array.shape().d0(), array.shape().d2(), array.shape().d1(), array.shape().d3())))
@@ -745,6 +1124,7 @@ public class ArrayFire {
     public static <T extends DataType<?>, D0 extends Num<D0>, D1 extends Num<D1>, D2 extends Num<D2>, D3 extends Num<D3>, S extends Shape<D0, D1, D2, D3>> Array<T, Shape<D0, D1, D3, D2>> transpose(
         Array<T, S> array, arrayfire.D2 d2, arrayfire.D3 d3) {
         return operation("transpose_D2_D3")
+                   .pure()
                    .inputs(array)
                    .outputs(prototype(array.type(),
                        shape(array.shape().d0(), array.shape().d1(), array.shape().d3(), array.shape().d2())))
@@ -803,6 +1183,7 @@ public class ArrayFire {
                 String.format("New shape %s doesn't have same capacity as original shape %s", newShape, array.shape()));
         }
         return operation("reshape")
+                   .pure(newShape)
                    .inputs(array)
                    .outputs(prototype(array.type(), newShape))
                    .operation(
@@ -815,11 +1196,24 @@ public class ArrayFire {
      * Release the memory of the given array on the device.
      */
     public static void release(Array<?, ?> array) {
+        // The array may still be used, or not yet produced, by operations queued on a dispatch thread.
+        var scope = scope();
+        if (scope != null) {
+            scope.drain();
+        }
         if (!array.materialized()) {
             return;
         }
-        handleStatus(() -> arrayfire_h.af_release_array(array.dereference()));
-        Scope.untrack(array);
+        if (array.spilled() != null) {
+            // No need to bring it back to the device just to release it. Untracked first, since spilled arrays no longer
+            // count towards their scope's bytes.
+            Scope.detach(array);
+            Spill.discard(array);
+        } else {
+            handleStatus(() -> arrayfire_h.af_release_array(array.dereference()));
+            Scope.detach(array);
+        }
+        array.recycle();
     }
 
     /**
@@ -849,8 +1243,8 @@ public class ArrayFire {
      * Return the ref count of the given array.
      */
     public static int refCount(Array<?, ?> array) {
-        try (Arena arena = Arena.ofConfined()) {
-            var result = arena.allocate(ValueLayout.JAVA_INT);
+        try (var scratch = Scratch.open()) {
+            var result = scratch.allocate(ValueLayout.JAVA_INT);
             handleStatus(() -> arrayfire_h.af_get_data_ref_count(result, array.dereference()));
             return result.get(ValueLayout.JAVA_INT, 0);
         }
@@ -864,7 +1258,8 @@ public class ArrayFire {
         var tensor = af.tidy(initializer);
         var variable = new Variable<>(tensor.type(), tensor.shape());
         variable.segment().copyFrom(tensor.segment());
-        Scope.untrack(tensor);
+        Scope.detach(tensor);
+        AutoRelease.register(variable);
         return variable;
     }
 
@@ -876,7 +1271,8 @@ public class ArrayFire {
         var tensor = af.tidy(initializer);
         var params = new Params<>(tensor.type(), tensor.shape(), optimizerProvider);
         params.segment().copyFrom(tensor.segment());
-        Scope.untrack(tensor);
+        Scope.detach(tensor);
+        AutoRelease.register(params);
         return params;
     }
 
@@ -884,7 +1280,9 @@ public class ArrayFire {
      * Evaluate the array, telling the ArrayFire JIT compiler that you want the literal values of the array.
      */
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> eval(Array<T, S> array) {
+        flush();
         handleStatus(() -> arrayfire_h.af_eval(array.dereference()));
+        array.jit(0, 0);
         return array;
     }
 
@@ -892,12 +1290,30 @@ public class ArrayFire {
      * Evaluate the arrays, telling the ArrayFire JIT compiler that you want the literal values of the arrays.
      */
     public static void eval(Array<?, ?>... arrays) {
-        try (Arena arena = Arena.ofConfined()) {
-            var array = arena.allocateArray(ValueLayout.ADDRESS, arrays.length);
-            for (int i = 0; i < arrays.length; i++) {
-                array.setAtIndex(ValueLayout.ADDRESS, i, arrays[i].dereference());
+        flush();
+        evalMultiple(List.of(arrays));
+        for (var array : arrays) {
+            array.jit(0, 0);
+        }
+    }
+
+    /**
+     * Registers an operation that evaluates the given arrays together once the operations producing them have been
+     * applied, used by {@link EvalPolicy}.
+     */
+    static void evalOperation(List<Array<?, ?>> arrays) {
+        operation("eval").inputs(arrays).outputs().operation(() -> evalMultiple(arrays)).build();
+        // Operations built from here on start new trees, even if the evaluation itself is queued.
+        arrays.forEach(array -> array.jit(0, 0));
+    }
+
+    private static void evalMultiple(List<Array<?, ?>> arrays) {
+        try (var scratch = Scratch.open()) {
+            var handles = scratch.allocateArray(ValueLayout.ADDRESS, arrays.size());
+            for (int i = 0; i < arrays.size(); i++) {
+                handles.setAtIndex(ValueLayout.ADDRESS, i, arrays.get(i).dereference());
             }
-            handleStatus(() -> arrayfire_h.af_eval_multiple(arrays.length, array));
+            handleStatus(() -> arrayfire_h.af_eval_multiple(arrays.size(), handles));
         }
     }
 
@@ -916,6 +1332,30 @@ public class ArrayFire {
         }
     }
 
+    /**
+     * Returns true if every dimension of the tileable is either equal to the array's or 1, in which case ArrayFire's
+     * batch mode broadcasts it without first writing out a tiled copy.
+     */
+    private static boolean broadcastable(Array<?, ?> array, Tileable<?, ?> tileable) {
+        var dims = array.shape().dims();
+        var tileableDims = tileable.array().shape().dims();
+        for (int i = 0; i < dims.length; i++) {
+            if (tileableDims[i] != dims[i] && tileableDims[i] != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reduces the gradients of a broadcast result back to the shape of the broadcast operand.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> sumAs(Array<?, ?> grads,
+                                                                                          Array<T, S> operand) {
+        return sumAs((Array) grads, operand.shape()).cast(operand.type());
+    }
+
     private static void assertShapeEquals(Shape<?, ?, ?, ?> left, Shape<?, ?, ?, ?> right) {
         if (!Arrays.equals(left.dims(), right.dims())) {
             throw new IllegalArgumentException(String.format("Shapes %s and %s are not equal", left, right));
@@ -932,10 +1372,20 @@ public class ArrayFire {
     /**
      * Multiply two tensors together element wise, broadcasting the smaller array to the larger array's shape.
      */
-    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> mul(Array<T, S> array,
-                                                                                       Tileable<T, ?> tileable) {
+    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, TS extends Shape<?, ?, ?, ?>> Array<T, S> mul(
+        Array<T, S> array, Tileable<T, TS> tileable) {
         assertTileable(array, tileable);
-        return mul(array, tileable.array().tileAs(array));
+        if (!broadcastable(array, tileable)) {
+            return mul(array, tileable.array().tileAs(array));
+        }
+        var right = tileable.array();
+        return operation("mul")
+                   .pure()
+                   .inputs(array, right)
+                   .outputs(prototype(array.type(), array.shape()))
+                   .operation(ptr -> arrayfire_h.af_mul(ptr, array.dereference(), right.dereference(), true))
+                   .grads((result, grads) -> new ArrayPair<>(mul(grads, tileable), sumAs(mul(grads, array), right)))
+                   .build();
     }
 
     /**
@@ -945,6 +1395,7 @@ public class ArrayFire {
                                                                                        Array<T, S> right) {
         assertShapeEquals(left.shape(), right.shape());
         return operation("mul")
+                   .pure()
                    .inputs(left, right)
                    .outputs(prototype(left.type(), left.shape()))
                    .operation(ptr -> arrayfire_h.af_mul(ptr, left.dereference(), right.dereference(), false))
@@ -960,27 +1411,56 @@ public class ArrayFire {
         return div(left, af.constant(left.type(), right).tile());
     }
 
-    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> div(Array<T, S> left,
-                                                                                       Tileable<T, ?> right) {
+    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, TS extends Shape<?, ?, ?, ?>> Array<T, S> div(
+        Array<T, S> left, Tileable<T, TS> right) {
         assertTileable(left, right);
-        return div(left, right.array().tileAs(left));
+        if (!broadcastable(left, right)) {
+            return div(left, right.array().tileAs(left));
+        }
+        var divisor = right.array();
+        return operation("div")
+                   .pure()
+                   .inputs(left, divisor)
+                   .outputs(prototype(left.type(), left.shape()))
+                   .operation(ptr -> arrayfire_h.af_div(ptr, left.dereference(), divisor.dereference(), true))
+                   .grads((result, grads) -> {
+                       var leftGrads = div(grads, right);
+                       var rightGrads = sumAs(mul(leftGrads, result).negate(), divisor);
+                       return new ArrayPair<>(leftGrads, rightGrads);
+                   })
+                   .build();
     }
 
-    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> div(Tileable<T, ?> left,
-                                                                                       Array<T, S> right) {
+    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, TS extends Shape<?, ?, ?, ?>> Array<T, S> div(
+        Tileable<T, TS> left, Array<T, S> right) {
         assertTileable(left, right);
-        return div(left.array().tileAs(right), right);
+        if (!broadcastable(right, left)) {
+            return div(left.array().tileAs(right), right);
+        }
+        var dividend = left.array();
+        return operation("div")
+                   .pure()
+                   .inputs(dividend, right)
+                   .outputs(prototype(right.type(), right.shape()))
+                   .operation(ptr -> arrayfire_h.af_div(ptr, dividend.dereference(), right.dereference(), true))
+                   .grads((result, grads) -> {
+                       var rightGrads = div(grads, right);
+                       var leftGrads = sumAs(rightGrads, dividend);
+                       return new ArrayPair<>(leftGrads, mul(rightGrads, result).negate());
+                   })
+                   .build();
     }
 
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> div(Array<T, S> left,
                                                                                        Array<T, S> right) {
         assertShapeEquals(left.shape(), right.shape());
         return operation("div")
+                   .pure()
                    .inputs(left, right)
                    .outputs(prototype(left.type(), left.shape()))
                    .operation(ptr -> arrayfire_h.af_div(ptr, left.dereference(), right.dereference(), false))
                    .grads((result, grads) -> {
-                       var rightReciprocal = div(constant(1f).cast(left.type()).tileAs(right), right);
+                       var rightReciprocal = div(1, right);
                        var leftGrads = mul(rightReciprocal, grads);
                        var rightGrads = mul(mul(leftGrads, left.negate()), rightReciprocal);
                        return new ArrayPair<>(leftGrads, rightGrads);
@@ -994,16 +1474,27 @@ public class ArrayFire {
         return add(left, af.constant(left.type(), left.shape(), right));
     }
 
-    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> add(Array<T, S> array,
-                                                                                       Tileable<T, ?> tileable) {
+    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, TS extends Shape<?, ?, ?, ?>> Array<T, S> add(
+        Array<T, S> array, Tileable<T, TS> tileable) {
         assertTileable(array, tileable);
-        return add(array, tileable.array().tileAs(array));
+        if (!broadcastable(array, tileable)) {
+            return add(array, tileable.array().tileAs(array));
+        }
+        var right = tileable.array();
+        return operation("add")
+                   .pure()
+                   .inputs(array, right)
+                   .outputs(prototype(array.type(), array.shape()))
+                   .operation(ptr -> arrayfire_h.af_add(ptr, array.dereference(), right.dereference(), true))
+                   .grads((result, grads) -> new ArrayPair<>(grads, sumAs(grads, right)))
+                   .build();
     }
 
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, SL extends S, SR extends S> Array<T, SL> add(
         Array<T, SL> left, Array<T, SR> right) {
         assertShapeEquals(left.shape(), right.shape());
         return operation("add")
+                   .pure()
                    .inputs(left, right)
                    .outputs(prototype(left.type(), left.shape()))
                    .operation(ptr -> arrayfire_h.af_add(ptr, left.dereference(), right.dereference(), false))
@@ -1019,22 +1510,43 @@ public class ArrayFire {
         return sub(left, af.constant(left.type(), right).tile());
     }
 
-    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> sub(Array<T, S> left,
-                                                                                       Tileable<T, ?> right) {
+    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, TS extends Shape<?, ?, ?, ?>> Array<T, S> sub(
+        Array<T, S> left, Tileable<T, TS> right) {
         assertTileable(left, right);
-        return sub(left, right.array().tileAs(left));
+        if (!broadcastable(left, right)) {
+            return sub(left, right.array().tileAs(left));
+        }
+        var subtrahend = right.array();
+        return operation("sub")
+                   .pure()
+                   .inputs(left, subtrahend)
+                   .outputs(prototype(left.type(), left.shape()))
+                   .operation(ptr -> arrayfire_h.af_sub(ptr, left.dereference(), subtrahend.dereference(), true))
+                   .grads((result, grads) -> new ArrayPair<>(grads, sumAs(grads.negate(), subtrahend)))
+                   .build();
     }
 
-    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> sub(Tileable<T, ?> left,
-                                                                                       Array<T, S> right) {
+    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, TS extends Shape<?, ?, ?, ?>> Array<T, S> sub(
+        Tileable<T, TS> left, Array<T, S> right) {
         assertTileable(left, right);
-        return sub(left.array().tileAs(right), right);
+        if (!broadcastable(right, left)) {
+            return sub(left.array().tileAs(right), right);
+        }
+        var minuend = left.array();
+        return operation("sub")
+                   .pure()
+                   .inputs(minuend, right)
+                   .outputs(prototype(right.type(), right.shape()))
+                   .operation(ptr -> arrayfire_h.af_sub(ptr, minuend.dereference(), right.dereference(), true))
+                   .grads((result, grads) -> new ArrayPair<>(sumAs(grads, minuend), grads.negate()))
+                   .build();
     }
 
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, SL extends S, SR extends S> Array<T, SL> sub(
         Array<T, SL> left, Array<T, SR> right) {
         assertShapeEquals(left.shape(), right.shape());
         return operation("sub")
+                   .pure()
                    .inputs(left, right)
                    .outputs(prototype(left))
                    .operation(ptr -> arrayfire_h.af_sub(ptr, left.dereference(), right.dereference(), false))
@@ -1046,16 +1558,26 @@ public class ArrayFire {
         return ge(left, af.constant(left.type(), left.shape(), right));
     }
 
-    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<B8, S> ge(Array<T, S> array,
-                                                                                       Tileable<T, ?> tileable) {
+    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, TS extends Shape<?, ?, ?, ?>> Array<B8, S> ge(
+        Array<T, S> array, Tileable<T, TS> tileable) {
         assertTileable(array, tileable);
-        return ge(array, tileable.array().tileAs(array));
+        if (!broadcastable(array, tileable)) {
+            return ge(array, tileable.array().tileAs(array));
+        }
+        var right = tileable.array();
+        return operation("ge")
+                   .pure()
+                   .inputs(array, right)
+                   .outputs(prototype(B8, array.shape()))
+                   .operation(ptr -> arrayfire_h.af_ge(ptr, array.dereference(), right.dereference(), true))
+                   .build();
     }
 
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, SL extends S, SR extends S> Array<B8, SL> ge(
         Array<T, SL> left, Array<T, SR> right) {
         assertShapeEquals(left.shape(), right.shape());
         return operation("ge")
+                   .pure()
                    .inputs(left, right)
                    .outputs(prototype(B8, left.shape()))
                    .operation(ptr -> arrayfire_h.af_ge(ptr, left.dereference(), right.dereference(), false))
@@ -1066,16 +1588,26 @@ public class ArrayFire {
         return le(left, af.constant(left.type(), left.shape(), right));
     }
 
-    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<B8, S> le(Array<T, S> array,
-                                                                                       Tileable<T, ?> tileable) {
+    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, TS extends Shape<?, ?, ?, ?>> Array<B8, S> le(
+        Array<T, S> array, Tileable<T, TS> tileable) {
         assertTileable(array, tileable);
-        return le(array, tileable.array().tileAs(array));
+        if (!broadcastable(array, tileable)) {
+            return le(array, tileable.array().tileAs(array));
+        }
+        var right = tileable.array();
+        return operation("le")
+                   .pure()
+                   .inputs(array, right)
+                   .outputs(prototype(B8, array.shape()))
+                   .operation(ptr -> arrayfire_h.af_le(ptr, array.dereference(), right.dereference(), true))
+                   .build();
     }
 
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, SL extends S, SR extends S> Array<B8, SL> le(
         Array<T, SL> left, Array<T, SR> right) {
         assertShapeEquals(left.shape(), right.shape());
         return operation("le")
+                   .pure()
                    .inputs(left, right)
                    .outputs(prototype(B8, left.shape()))
                    .operation(ptr -> arrayfire_h.af_le(ptr, left.dereference(), right.dereference(), false))
@@ -1086,6 +1618,7 @@ public class ArrayFire {
                                                                                               Array<B8, SR> right) {
         assertShapeEquals(left.shape(), right.shape());
         return operation("and")
+                   .pure()
                    .inputs(left, right)
                    .outputs(prototype(B8, left.shape()))
                    .operation(ptr -> arrayfire_h.af_and(ptr, left.dereference(), right.dereference(), false))
@@ -1097,16 +1630,31 @@ public class ArrayFire {
         return maxof(left, af.constant(left.type(), left.shape(), right));
     }
 
-    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> maxof(Array<T, S> array,
-                                                                                         Tileable<T, ?> tileable) {
+    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, TS extends Shape<?, ?, ?, ?>> Array<T, S> maxof(
+        Array<T, S> array, Tileable<T, TS> tileable) {
         assertTileable(array, tileable);
-        return maxof(array, tileable.array().tileAs(array));
+        if (!broadcastable(array, tileable)) {
+            return maxof(array, tileable.array().tileAs(array));
+        }
+        var right = tileable.array();
+        return operation("maxof")
+                   .pure()
+                   .inputs(array, right)
+                   .outputs(prototype(array.type(), array.shape()))
+                   .operation(ptr -> arrayfire_h.af_maxof(ptr, array.dereference(), right.dereference(), true))
+                   .grads((result, grads) -> {
+                       var leftIsMax = eq(result, array).cast(array.type());
+                       var rightIsMax = eq(result, tileable).cast(array.type());
+                       return new ArrayPair<>(mul(leftIsMax, grads), sumAs(mul(rightIsMax, grads), right));
+                   })
+                   .build();
     }
 
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, SL extends S, SR extends S> Array<T, SL> maxof(
         Array<T, SL> left, Array<T, SR> right) {
         assertShapeEquals(left.shape(), right.shape());
         return operation("maxof")
+                   .pure()
                    .inputs(left, right)
                    .outputs(prototype(left.type(), left.shape()))
                    .operation(ptr -> arrayfire_h.af_maxof(ptr, left.dereference(), right.dereference(), false))
@@ -1123,16 +1671,31 @@ public class ArrayFire {
         return minof(left, af.constant(left.type(), left.shape(), right));
     }
 
-    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> minof(Array<T, S> array,
-                                                                                         Tileable<T, ?> tileable) {
+    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, TS extends Shape<?, ?, ?, ?>> Array<T, S> minof(
+        Array<T, S> array, Tileable<T, TS> tileable) {
         assertTileable(array, tileable);
-        return minof(array, tileable.array().tileAs(array));
+        if (!broadcastable(array, tileable)) {
+            return minof(array, tileable.array().tileAs(array));
+        }
+        var right = tileable.array();
+        return operation("minof")
+                   .pure()
+                   .inputs(array, right)
+                   .outputs(prototype(array.type(), array.shape()))
+                   .operation(ptr -> arrayfire_h.af_minof(ptr, array.dereference(), right.dereference(), true))
+                   .grads((result, grads) -> {
+                       var leftIsMin = eq(result, array).cast(array.type());
+                       var rightIsMin = eq(result, tileable).cast(array.type());
+                       return new ArrayPair<>(mul(leftIsMin, grads), sumAs(mul(rightIsMin, grads), right));
+                   })
+                   .build();
     }
 
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, SL extends S, SR extends S> Array<T, SL> minof(
         Array<T, SL> left, Array<T, SR> right) {
         assertShapeEquals(left.shape(), right.shape());
         return operation("minof")
+                   .pure()
                    .inputs(left, right)
                    .outputs(prototype(left.type(), left.shape()))
                    .operation(ptr -> arrayfire_h.af_minof(ptr, left.dereference(), right.dereference(), false))
@@ -1147,6 +1710,7 @@ public class ArrayFire {
     public static <T extends DataType<?>, LD0 extends Num<LD0>, RD0 extends Num<RD0>, D1 extends Num<D1>, D2 extends Num<D2>, D3 extends Num<D3>, SL extends Shape<LD0, D1, D2, D3>, SR extends Shape<RD0, D1, D2, D3>> Array<T, Shape<N, D1, D2, D3>> join(
         Array<T, SL> lhs, Array<T, SR> rhs) {
         return operation("join")
+                   .pure(0)
                    .inputs(lhs, rhs)
                    .outputs(prototype(lhs.type(),
                        shape(n(lhs.shape().d0().size() + rhs.shape().d0().size()), lhs.shape().d1(), lhs.shape().d2(),
@@ -1166,6 +1730,7 @@ public class ArrayFire {
                 String.format("Incompatible shapes to join along d1: %s, %s", lhs.shape(), rhs.shape()));
         }
         return operation("join")
+                   .pure(1)
                    .inputs(lhs, rhs)
                    .outputs(prototype(lhs.type(),
                        shape(lhs.shape().d0(), n(lhs.shape().d1().size() + rhs.shape().d1().size()), lhs.shape().d2(),
@@ -1186,6 +1751,7 @@ public class ArrayFire {
                 String.format("Incompatible shapes to join along d2: %s, %s", lhs.shape(), rhs.shape()));
         }
         return operation("join")
+                   .pure(2)
                    .inputs(lhs, rhs)
                    .outputs(prototype(lhs.type(),
                        shape(lhs.shape().d0(), lhs.shape().d1(), n(lhs.shape().d2().size() + rhs.shape().d2().size()),
@@ -1207,6 +1773,7 @@ public class ArrayFire {
                 String.format("Incompatible shapes to join along d3: %s, %s", lhs.shape(), rhs.shape()));
         }
         return operation("join")
+                   .pure(3)
                    .inputs(lhs, rhs)
                    .outputs(prototype(lhs.type(), shape(lhs.shape().d0(), lhs.shape().d1(), lhs.shape().d2(),
                        n(lhs.shape().d3().size() + rhs.shape().d3().size()))))
@@ -1407,7 +1974,7 @@ public class ArrayFire {
         Array<T, ? extends Shape<?, U, U, U>> values, Array<S32, ? extends Shape<D0, U, U, U>> d0Indices,
         Array<S32, ? extends Shape<D0, U, U, U>> d1Indices, S shape) {
         return operation("sparse")
-                   .inputs(values)
+                   .inputs(List.of(values, d0Indices, d1Indices))
                    .outputs(prototype(values.type(), shape))
                    .operation(ptr -> arrayfire_h.af_create_sparse_array(ptr, shape.d0().size(), shape.d1().size(),
                        values.dereference(), d0Indices.dereference(), d1Indices.dereference(), Storage.COO.code()))
@@ -1438,6 +2005,7 @@ public class ArrayFire {
     public static <T extends DataType<?>, D0 extends Num<D0>, D2 extends Num<D2>, D3 extends Num<D3>, S extends Shape<D0, U, D2, D3>> Array<T, Shape<D0, D0, D2, D3>> diag(
         Array<T, S> array) {
         return operation("diag")
+                   .pure()
                    .inputs(array)
                    .outputs(prototype(array.type(),
                        shape(array.shape().d0(), array.shape().d0(), array.shape().d2(), array.shape().d3())))
@@ -1449,6 +2017,7 @@ public class ArrayFire {
     public static <T extends DataType<?>, D0 extends Num<D0>, D2 extends Num<D2>, D3 extends Num<D3>, SI extends Shape<D0, D0, D2, D3>> Array<T, Shape<D0, U, D2, D3>> diagExtract(
         Array<T, SI> array) {
         return operation("diag_extract")
+                   .pure()
                    .inputs(array)
                    .outputs(prototype(array.type(),
                        shape(array.shape().d0(), af.u(), array.shape().d2(), array.shape().d3())))
@@ -1464,14 +2033,73 @@ public class ArrayFire {
             throw new IllegalArgumentException(
                 String.format("Incompatible shapes for matmul, left: %s right: %s", left.shape(), right.shape()));
         }
+        return matmul(left, false, right, false,
+            shape(left.shape().d0(), right.shape().d1(), left.shape().d2(), left.shape().d3()));
+    }
+
+    /**
+     * Multiplies the transpose of the left matrix by the right matrix, equivalent to {@code matmul(transpose(left),
+     * right)} but without materializing the transpose.
+     */
+    public static <T extends DataType<?>, D0 extends Num<D0>, D1 extends Num<D1>, D2 extends Num<D2>, D3 extends Num<D3>, OD1 extends Num<OD1>, SL extends Shape<D1, D0, D2, D3>, SR extends Shape<D1, OD1, D2, D3>> Array<T, Shape<D0, OD1, D2, D3>> matmulTN(
+        Array<T, SL> left, Array<T, SR> right) {
+        if (left.shape().d0().size() != right.shape().d0().size()) {
+            throw new IllegalArgumentException(
+                String.format("Incompatible shapes for matmulTN, left: %s right: %s", left.shape(), right.shape()));
+        }
+        return matmul(left, true, right, false,
+            shape(left.shape().d1(), right.shape().d1(), left.shape().d2(), left.shape().d3()));
+    }
+
+    /**
+     * Multiplies the left matrix by the transpose of the right matrix, equivalent to {@code matmul(left,
+     * transpose(right))} but without materializing the transpose.
+     */
+    public static <T extends DataType<?>, D0 extends Num<D0>, D1 extends Num<D1>, D2 extends Num<D2>, D3 extends Num<D3>, OD1 extends Num<OD1>, SL extends Shape<D0, D1, D2, D3>, SR extends Shape<OD1, D1, D2, D3>> Array<T, Shape<D0, OD1, D2, D3>> matmulNT(
+        Array<T, SL> left, Array<T, SR> right) {
+        if (left.shape().d1().size() != right.shape().d1().size()) {
+            throw new IllegalArgumentException(
+                String.format("Incompatible shapes for matmulNT, left: %s right: %s", left.shape(), right.shape()));
+        }
+        return matmul(left, false, right, true,
+            shape(left.shape().d0(), right.shape().d0(), left.shape().d2(), left.shape().d3()));
+    }
+
+    /**
+     * Passes the transpose flags straight through to af_matmul. The gradients use the flags too, so no transposed copy
+     * of either input or of the incoming gradients is ever built.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> matmul(
+        Array<T, ?> left, boolean transposeLeft, Array<T, ?> right, boolean transposeRight, S resultShape) {
+        var leftOption = transposeLeft ? MAT_TRANS : MAT_NONE;
+        var rightOption = transposeRight ? MAT_TRANS : MAT_NONE;
         return operation("matmul")
+                   .pure(leftOption, rightOption)
                    .inputs(left, right)
-                   .outputs(prototype(left.type(),
-                       shape(left.shape().d0(), right.shape().d1(), left.shape().d2(), left.shape().d3())))
-                   .operation(ptr -> arrayfire_h.af_matmul(ptr, left.dereference(), right.dereference(), 0, 0))
+                   .outputs(prototype(left.type(), resultShape))
+                   .operation(ptr -> arrayfire_h.af_matmul(ptr, left.dereference(), right.dereference(), leftOption,
+                       rightOption))
                    .grads((result, grads) -> {
-                       var leftGrads = matmul(grads, transpose(right));
-                       var rightGrads = matmul(transpose(left), grads);
+                       Array leftGrads;
+                       Array rightGrads;
+                       if (!transposeLeft && !transposeRight) {
+                           // C = A B: dA = dC B^T, dB = A^T dC
+                           leftGrads = matmulNT((Array) grads, (Array) right);
+                           rightGrads = matmulTN((Array) left, (Array) grads);
+                       } else if (transposeLeft && !transposeRight) {
+                           // C = A^T B: dA = B dC^T, dB = A dC
+                           leftGrads = matmulNT((Array) right, (Array) grads);
+                           rightGrads = matmul((Array) left, (Array) grads);
+                       } else if (!transposeLeft) {
+                           // C = A B^T: dA = dC B, dB = dC^T A
+                           leftGrads = matmul((Array) grads, (Array) right);
+                           rightGrads = matmulTN((Array) grads, (Array) left);
+                       } else {
+                           // C = A^T B^T: dA = B^T dC^T, dB = dC^T A^T
+                           leftGrads = matmul(right, true, grads, true, left.shape());
+                           rightGrads = matmul(grads, true, left, true, right.shape());
+                       }
                        return new ArrayPair<>(leftGrads.reshape(left.shape()), rightGrads.reshape(right.shape()));
                    })
                    .build();
@@ -1492,26 +2120,42 @@ public class ArrayFire {
         }
     }
 
+    @SuppressWarnings("rawtypes")
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> clamp(Array<T, S> array,
                                                                                          Tileable<T, ?> lo,
                                                                                          Tileable<T, ?> hi) {
         assertTileable(array, lo);
         assertTileable(array, hi);
-        return clamp(array, lo.array().tileAs(array), hi.array().tileAs(array));
+        if (!broadcastable(array, lo) || !broadcastable(array, hi)) {
+            return clamp(array, lo.array().tileAs(array), hi.array().tileAs(array));
+        }
+        // af_clamp broadcasts the bounds itself, the masks for the gradients broadcast them too.
+        return operation("clamp")
+                   .inputs(List.of(array, lo.array(), hi.array()))
+                   .outputs(prototype(array))
+                   .operation(ptr -> arrayfire_h.af_clamp(ptr, array.dereference(), lo.array().dereference(),
+                       hi.array().dereference(), true))
+                   .grads((result, grads, required) -> {
+                       var loMask = ge(array, lo);
+                       var hiMask = le(array, hi);
+                       return Arrays.asList(mul(grads, and(loMask, hiMask).cast(grads.type())), null, null);
+                   })
+                   .build();
     }
 
+    @SuppressWarnings("rawtypes")
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> clamp(Array<T, S> array,
                                                                                          Array<T, S> lo,
                                                                                          Array<T, S> hi) {
         return operation("clamp")
-                   .inputs(array)
+                   .inputs(List.of(array, lo, hi))
                    .outputs(prototype(array))
                    .operation(
                        ptr -> arrayfire_h.af_clamp(ptr, array.dereference(), lo.dereference(), hi.dereference(), true))
-                   .grads((result, grads) -> {
+                   .grads((result, grads, required) -> {
                        var loMask = ge(array, lo);
                        var hiMask = le(array, hi);
-                       return mul(grads, and(loMask, hiMask).cast(grads.type()));
+                       return Arrays.asList(mul(grads, and(loMask, hiMask).cast(grads.type())), null, null);
                    })
                    .build();
 
@@ -1524,12 +2168,28 @@ public class ArrayFire {
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, SL extends S, SR extends S> Array<B8, SL> eq(
         Array<T, SL> left, Array<T, SR> right) {
         return operation("eq")
+                   .pure()
                    .inputs(left, right)
                    .outputs(prototype(B8, left.shape()))
                    .operation(ptr -> arrayfire_h.af_eq(ptr, left.dereference(), right.dereference(), true))
                    .build();
     }
 
+    public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>, TS extends Shape<?, ?, ?, ?>> Array<B8, S> eq(
+        Array<T, S> array, Tileable<T, TS> tileable) {
+        assertTileable(array, tileable);
+        if (!broadcastable(array, tileable)) {
+            return eq(array, tileable.array().tileAs(array));
+        }
+        var right = tileable.array();
+        return operation("eq")
+                   .pure()
+                   .inputs(array, right)
+                   .outputs(prototype(B8, array.shape()))
+                   .operation(ptr -> arrayfire_h.af_eq(ptr, array.dereference(), right.dereference(), true))
+                   .build();
+    }
+
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> negate(Array<T, S> array) {
         var minusOne = constant(array.type(), array.shape(), -1);
         return mul(array, minusOne);
@@ -1537,6 +2197,7 @@ public class ArrayFire {
 
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> exp(Array<T, S> array) {
         return operation("exp")
+                   .pure()
                    .inputs(array)
                    .outputs(prototype(array))
                    .operation(ptr -> arrayfire_h.af_exp(ptr, array.dereference()))
@@ -1548,14 +2209,15 @@ public class ArrayFire {
         return pow(array, constant(array.type(), array.shape(), pow));
     }
 
+    @SuppressWarnings("rawtypes")
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> pow(Array<T, S> array,
                                                                                        Array<T, S> pow) {
         return operation("pow")
-                   .inputs(array)
+                   .inputs(List.of(array, pow))
                    .outputs(prototype(array))
                    .operation(ptr -> arrayfire_h.af_pow(ptr, array.dereference(), pow.dereference(), false))
-                   .grads((result, grads) -> mul(mul(grads, pow),
-                       pow(array, sub(pow, constant(pow.type(), pow.shape(), 1)))))
+                   .grads((result, grads, required) -> Arrays.asList(
+                       mul(mul(grads, pow), pow(array, sub(pow, constant(pow.type(), pow.shape(), 1)))), null))
                    .build();
     }
 
@@ -1564,6 +2226,7 @@ public class ArrayFire {
      */
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> signbit(Array<T, S> array) {
         return operation("signbit")
+                   .pure()
                    .inputs(array)
                    .outputs(array.prototype())
                    .operation(ptr -> arrayfire_h.af_sign(ptr, array.dereference()))
@@ -1590,6 +2253,7 @@ public class ArrayFire {
 
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> log(Array<T, S> array) {
         return operation("log")
+                   .pure()
                    .inputs(array)
                    .outputs(prototype(array))
                    .operation(ptr -> arrayfire_h.af_log(ptr, array.dereference()))
@@ -1599,6 +2263,7 @@ public class ArrayFire {
 
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> abs(Array<T, S> input) {
         return operation("abs")
+                   .pure()
                    .inputs(input)
                    .outputs(prototype(input))
                    .operation(ptr -> arrayfire_h.af_abs(ptr, input.dereference()))
@@ -1608,6 +2273,7 @@ public class ArrayFire {
 
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> sqrt(Array<T, S> array) {
         return operation("sqrt")
+                   .pure()
                    .inputs(array)
                    .outputs(prototype(array))
                    .operation(ptr -> arrayfire_h.af_sqrt(ptr, array.dereference()))
@@ -1620,11 +2286,11 @@ public class ArrayFire {
         return softmax(array, 1f);
     }
 
-    public static Function<MemorySegment, Integer> tidyOperation(Supplier<Array<?, ?>> fn) {
+    public static ToIntFunction<MemorySegment> tidyOperation(Supplier<Array<?, ?>> fn) {
         return ptr -> {
             var result = tidy(fn);
             ptr.copyFrom(result.segment());
-            Scope.untrack(result);
+            Scope.detach(result);
             return Status.AF_SUCCESS.code();
         };
     }
@@ -1702,21 +2368,25 @@ public class ArrayFire {
 
     public static <T extends DataType<?>, D0 extends Num<D0>, D1 extends Num<D1>, D2 extends Num<D2>, D3 extends Num<D3>> Array<T, Shape<D0, D1, D2, D3>> index(
         Array<T, ?> array, Index<D0> i0, Index<D1> i1, Index<D2> i2, Index<D3> i3) {
+        // Indexing by arrays, e.g. a permutation, reads them too.
+        var inputs = new ArrayList<Array<?, ?>>();
+        inputs.add(array);
+        for (var index : List.of(i0, i1, i2, i3)) {
+            if (index.array() != null) {
+                inputs.add(index.array());
+            }
+        }
         return operation("index")
-                   .inputs(array)
+                   .inputs(inputs)
                    .outputs(
                        prototype(array.type(), shape(i0.createDim(), i1.createDim(), i2.createDim(), i3.createDim())))
                    .operation(ptr -> {
-                       var layout = MemoryLayout.sequenceLayout(4, Index.LAYOUT);
-                       var nativeIndexes = Arena.ofAuto().allocateArray(Index.LAYOUT, 4);
-                       i0.emigrate(nativeIndexes.asSlice(layout.byteOffset(MemoryLayout.PathElement.sequenceElement(0)),
-                           Index.LAYOUT.byteSize()));
-                       i1.emigrate(nativeIndexes.asSlice(layout.byteOffset(MemoryLayout.PathElement.sequenceElement(1)),
-                           Index.LAYOUT.byteSize()));
-                       i2.emigrate(nativeIndexes.asSlice(layout.byteOffset(MemoryLayout.PathElement.sequenceElement(2)),
-                           Index.LAYOUT.byteSize()));
-                       i3.emigrate(nativeIndexes.asSlice(layout.byteOffset(MemoryLayout.PathElement.sequenceElement(3)),
-                           Index.LAYOUT.byteSize()));
+                       var size = Index.LAYOUT.byteSize();
+                       var nativeIndexes = Scratch.current().allocateArray(Index.LAYOUT, 4);
+                       i0.emigrate(nativeIndexes.asSlice(0, size));
+                       i1.emigrate(nativeIndexes.asSlice(size, size));
+                       i2.emigrate(nativeIndexes.asSlice(2 * size, size));
+                       i3.emigrate(nativeIndexes.asSlice(3 * size, size));
                        return arrayfire_h.af_index_gen(ptr, array.dereference(), 4, nativeIndexes);
                    })
                    // TODO: Add grads once I work out how to invert and index.
@@ -1789,6 +2459,7 @@ public class ArrayFire {
         int d2ratio = newShape.d2().size() / array.shape().d2().size();
         int d3ratio = newShape.d3().size() / array.shape().d3().size();
         return operation("tile")
+                   .pure(newShape)
                    .inputs(array)
                    .outputs(prototype(array.type(), newShape))
                    .operation(ptr -> arrayfire_h.af_tile(ptr, array.dereference(), d0ratio, d1ratio, d2ratio, d3ratio))
@@ -1801,25 +2472,25 @@ public class ArrayFire {
         Array<T, S> input, NS newShape) {
         // I think there is a nicer way to do this in at most two operations.
         Array result = input;
-        if (newShape.d0() != input.shape().d0()) {
+        if (newShape.d0().size() != input.shape().d0().size()) {
             if (newShape.d0().size() != 1)
                 throw new IllegalArgumentException("Can't sum over D0 from " + input.shape() + " to " + newShape);
             result = sum(result);
         }
-        if (newShape.d1() != input.shape().d1()) {
+        if (newShape.d1().size() != input.shape().d1().size()) {
             if (newShape.d1().size() != 1)
                 throw new IllegalArgumentException("Can't sum over D1 from " + input.shape() + " to " + newShape);
-            result = sum(result);
+            result = sum(result, D1);
         }
-        if (newShape.d2() != input.shape().d2()) {
+        if (newShape.d2().size() != input.shape().d2().size()) {
             if (newShape.d2().size() != 1)
                 throw new IllegalArgumentException("Can't sum over D2 from " + input.shape() + " to " + newShape);
-            result = sum(result);
+            result = sum(result, D2);
         }
-        if (newShape.d3() != input.shape().d3()) {
+        if (newShape.d3().size() != input.shape().d3().size()) {
             if (newShape.d3().size() != 1)
                 throw new IllegalArgumentException("Can't sum over D3 from " + input.shape() + " to " + newShape);
-            result = sum(result);
+            result = sum(result, D3);
         }
         return reshape(((Array<ST, ?>) result), newShape);
     }
@@ -1830,6 +2501,7 @@ public class ArrayFire {
 
     public static <T extends DataType<?>, S extends Shape<?, ?, ?, ?>> Array<T, S> flip(Array<T, S> array) {
         return operation("flip")
+                   .pure()
                    .inputs(array)
                    .outputs(prototype(array))
                    .operation(ptr -> arrayfire_h.af_flip(ptr, array.dereference(), 0))
@@ -1877,13 +2549,10 @@ public class ArrayFire {
         return operation("convolve2")
                    .inputs(array, filters)
                    .outputs(prototype(array.type(), computedShape))
-                   .operation(ptr -> {
-                       // Potentially retry after GC due to https://github.com/arrayfire/arrayfire/issues/3402
-                       retryWithGc(() -> handleStatus(
-                           () -> arrayfire_h.af_convolve2_nn(ptr, array.dereference(), filters.dereference(), 2,
-                               nativeDims(stride), 2, nativeDims(padding), 2, nativeDims(dilation))));
-                       return Status.AF_SUCCESS.code();
-                   })
+                   // Running out of memory, e.g. due to https://github.com/arrayfire/arrayfire/issues/3402, is recovered
+                   // from by Operation#apply.
+                   .operation(ptr -> arrayfire_h.af_convolve2_nn(ptr, array.dereference(), filters.dereference(), 2,
+                       nativeDims(stride), 2, nativeDims(padding), 2, nativeDims(dilation)))
                    .grads((result, grads) -> {
                        // We can get the filter gradients back by performing a convolution again, reducing over the
                        // image batch as "channels" in reverse.
@@ -1950,7 +2619,7 @@ public class ArrayFire {
         Array<T, S> array) {
         return tidy(() -> {
             var subMean = sub(array, mean(array, D1).tileAs(array));
-            var matrix = matmul(subMean, transpose(subMean));
+            var matrix = matmulNT(subMean, subMean);
             return div(matrix, constant(matrix.type(), matrix.shape(), array.shape().d1().size() - 1.0f));
         });
     }
@@ -1965,7 +2634,7 @@ public class ArrayFire {
             var svd = svd(cov);
             var invSqrtS = diag(div(constant(svd.s().type(), svd.s().shape(), 1.0f),
                 sqrt(add(svd.s(), constant(svd.s().type(), svd.s().shape(), 1e-5f)))));
-            return matmul(svd.u(), matmul(invSqrtS, transpose(svd.u())));
+            return matmul(svd.u(), matmulNT(invSqrtS, svd.u()));
         });
     }
 
@@ -2018,8 +2687,8 @@ public class ArrayFire {
     }
 
     public static void printMeminfo() {
-        try (Arena arena = Arena.ofConfined()) {
-            var chars = arena.allocateArray(ValueLayout.JAVA_BYTE, 1);
+        try (var scratch = Scratch.open()) {
+            var chars = scratch.allocateArray(ValueLayout.JAVA_BYTE, 1);
             handleStatus(() -> arrayfire_h.af_print_mem_info(chars, -1));
         }
     }
@@ -2028,6 +2697,52 @@ public class ArrayFire {
         handleStatus(arrayfire_h::af_device_gc);
     }
 
+    /**
+     * Enables or disables releasing arrays that escaped every scope once they become unreachable, e.g. a variable that
+     * a code path forgot to release. Only applies to arrays untracked or created while enabled. Unreachable arrays are
+     * only released after the garbage collector notices them, so explicit release is still preferable.
+     */
+    public static void setAutoRelease(boolean enabled) {
+        AutoRelease.enabled(enabled);
+    }
+
+    /**
+     * Returns how many arrays were registered for, and released by, automatic release, see {@link #setAutoRelease}.
+     */
+    public static AutoReleaseStats autoReleaseStats() {
+        return AutoRelease.stats();
+    }
+
+    /**
+     * Replaces ArrayFire's default memory manager with the given one, e.g. a {@link PoolingMemoryManager}, uninstalling
+     * any manager set before. Should be called before any arrays are allocated, since buffers allocated by the previous
+     * manager are never handed to the new one.
+     */
+    public static synchronized void setMemoryManager(MemoryManager manager) {
+        unsetMemoryManager();
+        var nativeManager = new NativeMemoryManager(manager);
+        nativeManager.install();
+        memoryManager = nativeManager;
+    }
+
+    /**
+     * Restores ArrayFire's default memory manager, shutting down the one set by {@link #setMemoryManager} if any. Arrays
+     * allocated through that manager must be released first, see {@link MemoryManager#shutdown()}.
+     */
+    public static synchronized void unsetMemoryManager() {
+        if (memoryManager != null) {
+            memoryManager.uninstall();
+            memoryManager = null;
+        }
+    }
+
+    /**
+     * Returns the memory manager set by {@link #setMemoryManager}, or null if ArrayFire's default is in use.
+     */
+    public static synchronized MemoryManager memoryManager() {
+        return memoryManager == null ? null : memoryManager.manager();
+    }
+
     public static A a(int value) {
         return new A(value);
     }
@@ -2137,39 +2852,87 @@ public class ArrayFire {
     }
 
     public static <T extends Array<?, ?>> T grads(Array<?, ?> loss, T tensor) {
-        var graph = new Graph(scope().operations());
-        return graph.grads(loss, tensor);
+        return scope().tape().grads(loss, tensor);
     }
 
     public static void optimize(Array<?, ?> loss) {
-        var graph = new Graph(scope().operations());
-        graph.optimize(loss);
-    }
-
-    private static void retryWithGc(Runnable fn) {
-        try {
-            fn.run();
-        } catch (ArrayFireException e) {
-            if (e.status() == Status.AF_ERR_NO_MEM) {
-                deviceGc();
-                fn.run();
-            } else {
-                throw e;
-            }
+        scope().tape().optimize(loss);
+        flush();
+    }
+
+    /**
+     * Traces the given function once against a placeholder with the same type and shape as the example, returning a
+     * {@link Plan} that replays the traced operations on new inputs. See {@link Plan} for restrictions on the function.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static <A extends Array<?, ?>, R extends Array<?, ?>> Plan.Unary<A, R> compile(A example, Function<A, R> fn) {
+        var input = (A) new Array(example.type(), example.shape());
+        var plan = new Plan.Unary<A, R>(List.of(input), () -> fn.apply(input));
+        scope().register(plan);
+        return plan;
+    }
+
+    /**
+     * Traces the given function once against placeholders with the same types and shapes as the examples, returning a
+     * {@link Plan} that replays the traced operations on new inputs. See {@link Plan} for restrictions on the function.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static <A extends Array<?, ?>, B extends Array<?, ?>, R extends Array<?, ?>> Plan.Binary<A, B, R> compile(
+        A leftExample, B rightExample, Functions.Function2<A, B, R> fn) {
+        var left = (A) new Array(leftExample.type(), leftExample.shape());
+        var right = (B) new Array(rightExample.type(), rightExample.shape());
+        var plan = new Plan.Binary<A, B, R>(List.of(left, right), () -> fn.apply(left, right));
+        scope().register(plan);
+        return plan;
+    }
+
+    /**
+     * Executes all lazily recorded operations in the current scope and its parents.
+     */
+    public static void flush() {
+        var scope = scope();
+        if (scope != null) {
+            scope.flushAll();
+        }
+    }
+
+    /**
+     * Makes the given native call, throwing if it fails. Scratch memory allocated during the call, e.g. by
+     * {@link #nativeDims}, is released once it returns.
+     */
+    @SuppressWarnings("try")
+    static void handleStatus(IntSupplier res) {
+        NativeLibraries.ensureLoaded();
+        int code;
+        try (var ignored = Scratch.open()) {
+            code = res.getAsInt();
+        }
+        checkStatus(code);
+    }
+
+    /**
+     * Makes the given native call with the given output cell, see {@link #handleStatus(IntSupplier)}. Operations use
+     * this rather than capturing the cell in a new lambda on every call.
+     */
+    @SuppressWarnings("try")
+    static void handleStatus(ToIntFunction<MemorySegment> call, MemorySegment output) {
+        NativeLibraries.ensureLoaded();
+        int code;
+        try (var ignored = Scratch.open()) {
+            code = call.applyAsInt(output);
         }
+        checkStatus(code);
     }
 
-    static void handleStatus(Supplier<Object> res) {
-        maybeLoadNativeLibraries();
-        var result = Status.fromCode((int) res.get());
-        if (!Status.AF_SUCCESS.equals(result)) {
-            throw new ArrayFireException(result);
+    private static void checkStatus(int code) {
+        if (code != Status.AF_SUCCESS.code()) {
+            throw new ArrayFireException(Status.fromCode(code));
         }
     }
 
     public static MemorySegment allocPinned(long bytes) {
-        try (Arena arena = Arena.ofConfined()) {
-            var ptr = arena.allocateArray(ValueLayout.ADDRESS, 1);
+        try (var scratch = Scratch.open()) {
+            var ptr = scratch.allocateArray(ValueLayout.ADDRESS, 1);
             handleStatus(() -> arrayfire_h.af_alloc_pinned(ptr, bytes));
             return MemorySegment.ofAddress(ptr.getAtIndex(ValueLayout.ADDRESS, 0).address()).reinterpret(bytes);
         }
@@ -2180,11 +2943,11 @@ public class ArrayFire {
     }
 
     public static DeviceMemInfo deviceMemInfo() {
-        try (Arena arena = Arena.ofConfined()) {
-            var allocBytes = arena.allocateArray(ValueLayout.JAVA_LONG, 1);
-            var allocBuffers = arena.allocateArray(ValueLayout.JAVA_LONG, 1);
-            var lockBytes = arena.allocateArray(ValueLayout.JAVA_LONG, 1);
-            var lockBuffers = arena.allocateArray(ValueLayout.JAVA_LONG, 1);
+        try (var scratch = Scratch.open()) {
+            var allocBytes = scratch.allocateArray(ValueLayout.JAVA_LONG, 1);
+            var allocBuffers = scratch.allocateArray(ValueLayout.JAVA_LONG, 1);
+            var lockBytes = scratch.allocateArray(ValueLayout.JAVA_LONG, 1);
+            var lockBuffers = scratch.allocateArray(ValueLayout.JAVA_LONG, 1);
             handleStatus(() -> arrayfire_h.af_device_mem_info(allocBytes, allocBuffers, lockBytes, lockBuffers));
             return new DeviceMemInfo(allocBytes.getAtIndex(ValueLayout.JAVA_LONG, 0),
                 allocBuffers.getAtIndex(ValueLayout.JAVA_LONG, 0), lockBytes.getAtIndex(ValueLayout.JAVA_LONG, 0),
@@ -14,9 +14,24 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
 import java.lang.foreign.ValueLayout;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
 
 import static arrayfire.ArrayFire.*;
 import static org.junit.Assert.*;
@@ -98,6 +113,120 @@ public class ArrayFireTest {
         Assert.assertArrayEquals(new double[]{1, 2}, heap(createHost(1.0, 2.0)), 1E-5f);
     }
 
+    @Test
+    public void mapHost() throws Exception {
+        var path = Files.createTempFile("mapHost", ".bin");
+        try {
+            var buffer = ByteBuffer.allocate(16).order(ByteOrder.nativeOrder());
+            buffer.putInt(42).putFloat(1).putFloat(2).putFloat(3);
+            Files.write(path, buffer.array());
+            var mapped = af.mapHost(F32, shape(3), path, 4);
+            assertEquals(2f, mapped.getFloat(1), 0);
+            assertArrayEquals(new float[]{1, 2, 3}, af.data(af.create(mapped)));
+            mapped.dispose();
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void saveAndLoad() throws Exception {
+        var path = Files.createTempFile("saveAndLoad", ".afja");
+        try {
+            var weights = af.create(new float[]{1, 2, 3, 4, 5, 6}).reshape(3, 2);
+            var counts = af.create(7, 8);
+            af.save(path, Map.of("weights", weights, "counts", counts));
+            var loaded = af.load(path);
+            assertEquals(Set.of("weights", "counts"), loaded.keySet());
+            var loadedWeights = (Array<F32, ?>) loaded.get("weights");
+            Assert.assertArrayEquals(new long[]{3, 2}, loadedWeights.shape().dims());
+            assertArrayEquals(new float[]{1, 2, 3, 4, 5, 6}, af.data(loadedWeights));
+            assertArrayEquals(new int[]{7, 8}, af.data((Array<S32, ?>) loaded.get("counts")));
+            // A truncated file is rejected rather than read past its end.
+            var bytes = Files.readAllBytes(path);
+            Files.write(path, Arrays.copyOf(bytes, bytes.length - 4));
+            assertThrows(IllegalArgumentException.class, () -> af.load(path));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void numPy() throws Exception {
+        var npy = Files.createTempFile("numPy", ".npy");
+        var npz = Files.createTempFile("numPy", ".npz");
+        try {
+            // A C-ordered 2x3 array, [[0, 1, 2], [3, 4, 5]].
+            var dict = "{'descr': '<i4', 'fortran_order': False, 'shape': (2, 3), }";
+            var header = dict + " ".repeat(128 - 10 - dict.length() - 1) + "\n";
+            var buffer = ByteBuffer.allocate(128 + 24).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put((byte) 0x93).put("NUMPY".getBytes()).put((byte) 1).put((byte) 0);
+            buffer.putShort((short) header.length()).put(header.getBytes());
+            for (int i = 0; i < 6; i++) {
+                buffer.putInt(i);
+            }
+            Files.write(npy, buffer.array());
+            var loaded = af.loadNpy(npy);
+            Assert.assertArrayEquals(new long[]{3, 2}, loaded.shape().dims());
+            assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5}, (HostArray<S32, Integer, ?>) loaded);
+
+            var weights = af.createHost(F32, shape(3, 2), false, new float[]{1, 2, 3, 4, 5, 6});
+            af.saveNpz(npz, Map.of("weights", weights, "counts", loaded));
+            var archive = af.loadNpz(npz);
+            assertEquals(Set.of("weights", "counts"), archive.keySet());
+            Assert.assertArrayEquals(new long[]{3, 2}, archive.get("weights").shape().dims());
+            assertArrayEquals(new float[]{1, 2, 3, 4, 5, 6}, (HostArray<F32, Float, ?>) archive.get("weights"));
+            assertArrayEquals(new int[]{0, 1, 2, 3, 4, 5}, (HostArray<S32, Integer, ?>) archive.get("counts"));
+        } finally {
+            Files.delete(npy);
+            Files.delete(npz);
+        }
+    }
+
+    @Test
+    public void dataLoader() {
+        var features = af.createHost(F32, shape(2, 5), false, new float[]{0, 0, 1, 1, 2, 2, 3, 3, 4, 4});
+        var labels = af.createHost(F32, shape(1, 5), false, new float[]{0, 10, 20, 30, 40});
+        var loader = af.dataLoader(2, 0);
+        var featureSource = loader.add(features);
+        var labelSource = loader.add(labels);
+        assertEquals(3, loader.batches());
+        for (int epoch = 0; epoch < 2; epoch++) {
+            var seen = new float[5];
+            var sizes = new int[3];
+            var batches = loader.epoch();
+            for (int i = 0; batches.hasNext(); i++) {
+                var batch = batches.next();
+                sizes[i] = batch.size();
+                var featureData = af.data(batch.get(featureSource));
+                var labelData = af.data(batch.get(labelSource));
+                for (int j = 0; j < batch.size(); j++) {
+                    assertEquals(featureData.get(2 * j), featureData.get(2 * j + 1), 0);
+                    assertEquals(10 * featureData.get(2 * j), labelData.get(j), 0);
+                    seen[(int) (float) featureData.get(2 * j)]++;
+                }
+            }
+            Assert.assertArrayEquals(new int[]{2, 2, 1}, sizes);
+            Assert.assertArrayEquals(new float[]{1, 1, 1, 1, 1}, seen, 0);
+        }
+    }
+
+    @Test
+    public void hostArrayBulkAndUnboxed() {
+        var bytes = af.createHost(U8, shape(3), false, new byte[]{1, 2, 3});
+        bytes.setByte(1, (byte) 5);
+        assertEquals(5, bytes.getByte(1));
+        Assert.assertArrayEquals(new byte[]{1, 5, 3}, heap(bytes));
+        var floats = af.createHost(F32, shape(2));
+        floats.setFloat(0, 1.5f);
+        floats.setFloat(1, 2.5f);
+        assertEquals(2.5f, floats.getFloat(1), 0);
+        Assert.assertArrayEquals(new float[]{1.5f, 2.5f}, heap(floats), 0);
+        Assert.assertArrayEquals(new long[]{4, 5}, heap(af.data(af.create(S64, new long[]{4, 5}))));
+    }
+
     @Test
     public void castShapes() {
         var arr = af.create(new float[]{1, 2, 3, 4});
@@ -203,6 +332,143 @@ public class ArrayFireTest {
         assertArrayEquals(new float[]{0.11045734f, -0.06326824f, -0.06326824f, 0.0797966f}, af.data(zca), 1E-5);
     }
 
+    @Test
+    public void poolingMemoryManager() {
+        var manager = new PoolingMemoryManager();
+        af.setMemoryManager(manager);
+        try {
+            for (int i = 0; i < 3; i++) {
+                af.tidy(() -> af.data(af.add(af.create(new float[]{1, 2, 3}), 1.0)));
+            }
+            var stats = manager.stats();
+            assertTrue(stats.cacheHits() > 0);
+            assertEquals(stats.allocations(), stats.cacheHits() + stats.cacheMisses());
+            assertTrue(stats.peakBytes() >= stats.liveBytes() + stats.cachedBytes());
+            af.deviceGc();
+            assertEquals(0, manager.stats().cachedBytes());
+        } finally {
+            af.unsetMemoryManager();
+        }
+        // Shutting down frees everything the manager still holds.
+        assertEquals(0, manager.stats().liveBytes());
+        assertEquals(0, manager.stats().cachedBytes());
+    }
+
+    @Test
+    public void poolingMemoryManagerUserLocks() {
+        var freed = new ArrayList<MemorySegment>();
+        var manager = new PoolingMemoryManager();
+        manager.initialize(new MemoryManager.Device() {
+            private long next = 1024;
+
+            public int activeDeviceId() {
+                return 0;
+            }
+
+            public long maxMemoryBytes(int deviceId) {
+                return 0;
+            }
+
+            public MemorySegment allocate(long bytes) {
+                var pointer = MemorySegment.ofAddress(next);
+                next += bytes;
+                return pointer;
+            }
+
+            public void free(MemorySegment pointer) {
+                freed.add(pointer);
+            }
+        });
+        // Allocated locked by the user, e.g. through af_alloc_device, so ArrayFire never unlocks it itself.
+        var userBuffer = manager.allocate(16, true);
+        manager.userUnlock(userBuffer);
+        assertEquals(0, manager.stats().liveBytes());
+        assertEquals(1, manager.stats().frees());
+        // Reuses the pooled buffer, and is still in use when the manager shuts down.
+        var arrayBuffer = manager.allocate(16, false);
+        assertEquals(userBuffer, arrayBuffer);
+        manager.shutdown();
+        assertEquals(List.of(arrayBuffer), freed);
+        assertEquals(1, manager.stats().frees());
+        assertEquals(1, manager.stats().forcedFrees());
+    }
+
+    @Test
+    public void spillRestoresOnDereference() {
+        var array = af.eval(af.create(new float[]{1, 2, 3}));
+        assertTrue(Spill.spill(array) > 0);
+        assertNotNull(array.spilled());
+        assertTrue(array.materialized());
+        assertArrayEquals(new float[]{1, 2, 3}, af.data(array));
+        assertNull(array.spilled());
+    }
+
+    @Test
+    public void scopeBytes() {
+        af.tidy(() -> {
+            var scope = af.scope();
+            var a = af.create(new float[]{1, 2, 3, 4});
+            af.tidy(() -> {
+                af.add(a, a);
+            });
+            assertEquals(16, scope.liveBytes());
+            assertEquals(32, scope.nestedPeakBytes());
+            a.release();
+            assertEquals(0, scope.liveBytes());
+            assertEquals(16, scope.peakBytes());
+        });
+    }
+
+    @Test
+    public void releaseOutsideOwnerChain() {
+        var other = new Scope();
+        try {
+            var a = af.create(new float[]{1, 2, 3, 4});
+            Scope.move(a, other);
+            assertEquals(16, other.liveBytes());
+            a.release();
+            assertFalse(other.owns(a));
+            assertEquals(0, other.liveBytes());
+        } finally {
+            other.dispose();
+        }
+    }
+
+    @Test
+    public void tidyBudget() {
+        var result = af.tidy(40, () -> {
+            var x = af.create(new float[]{1, 2, 3, 4});
+            // Evaluated so that y no longer shares x's buffer through a JIT node.
+            var y = af.eval(af.add(x, x));
+            // Exceeds the budget, so the least recently used array is spilled.
+            var z = af.mul(y, y);
+            assertNotNull(x.spilled());
+            assertTrue(af.scope().nestedLiveBytes() <= 40);
+            return z;
+        });
+        assertArrayEquals(new float[]{4, 16, 36, 64}, af.data(result));
+        var a = af.create(new float[]{1, 2, 3, 4});
+        assertThrows(MemoryBudgetException.class, () -> af.tidy(8, () -> af.add(a, a)));
+    }
+
+    @Test
+    public void autoRelease() throws InterruptedException {
+        af.setAutoRelease(true);
+        try {
+            var released = af.autoReleaseStats().released();
+            af.tidy(() -> {
+                Scope.untrack(af.create(new float[]{1, 2, 3, 4}));
+            });
+            for (int i = 0; i < 100 && af.autoReleaseStats().released() == released; i++) {
+                System.gc();
+                Thread.sleep(10);
+            }
+            assertEquals(released + 1, af.autoReleaseStats().released());
+        } finally {
+            af.setAutoRelease(false);
+        }
+    }
+
     @Test
     public void deviceMemInfo() {
         af.deviceMemInfo();
@@ -231,6 +497,24 @@ public class ArrayFireTest {
         assertArrayEquals(new float[]{5, 11, 11, 25, 17, 39}, data(result));
     }
 
+    @Test
+    public void matmulTransposed() {
+        var left = af.create(new float[]{1, 2, 3, 4}).reshape(a(2), b(2));
+        var right = af.create(new float[]{1, 2, 3, 4, 5, 6}).reshape(a(2), c(3));
+        assertArrayEquals(new float[]{5, 11, 11, 25, 17, 39}, data(af.matmulTN(left, right)));
+        assertArrayEquals(new float[]{5, 11, 11, 25, 17, 39},
+            data(af.matmulNT(af.transpose(left), af.transpose(right))));
+    }
+
+    @Test
+    public void matmulTransposedGrads() {
+        var left = af.create(new float[]{1, 2, 3, 4}).reshape(a(2), b(2));
+        var right = af.create(new float[]{1, 2, 3, 4, 5, 6}).reshape(a(2), c(3));
+        var result = af.matmulTN(left, right);
+        assertArrayEquals(new float[]{9, 12, 9, 12}, data(af.grads(result, left)));
+        assertArrayEquals(new float[]{4, 6, 4, 6, 4, 6}, data(af.grads(result, right)));
+    }
+
     @Test
     public void svd() {
         var a = af.a(2);
@@ -268,6 +552,25 @@ public class ArrayFireTest {
         assertArrayEquals(new float[]{1, 4, 3, 8}, af.data(result));
     }
 
+    @Test
+    public void mulTileableGrads() {
+        var data = af.create(new float[]{1, 2, 3, 4}).reshape(2, 2);
+        var tile = af.create(new float[]{1, 2});
+        var result = af.mul(data, tile.tile());
+        assertArrayEquals(new float[]{1, 2, 1, 2}, af.data(af.grads(result, data)));
+        assertArrayEquals(new float[]{4, 6}, af.data(af.grads(result, tile)));
+    }
+
+    @Test
+    public void subTileableGrads() {
+        var data = af.create(new float[]{1, 2, 3, 4}).reshape(2, 2);
+        var tile = af.create(new float[]{10, 20}).reshape(1, 2);
+        var result = af.sub(tile.tile(), data);
+        assertArrayEquals(new float[]{9, 8, 17, 16}, af.data(result));
+        assertArrayEquals(new float[]{2, 2}, af.data(af.grads(result, tile)));
+        assertArrayEquals(new float[]{-1, -1, -1, -1}, af.data(af.grads(result, data)));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void mulTileableExpansion() {
         var data = af.create(new float[]{1, 2});
@@ -626,6 +929,74 @@ public class ArrayFireTest {
         assertArrayEquals(new float[]{0, 0}, af.data(startGrads));
     }
 
+    @Test
+    public void tapeGradientsLongChain() {
+        var start = af.create(1.0f, 2.0f);
+        var current = start;
+        for (int i = 0; i < 1000; i++) {
+            current = af.add(current, start);
+        }
+        var loss = af.sum(current);
+        var startGrads = af.grads(loss, start);
+        assertArrayEquals(new float[]{1001, 1001}, data(startGrads));
+    }
+
+    @Test
+    public void gradsReleaseIntermediates() {
+        var start = af.create(1.0f, 2.0f);
+        var current = start;
+        for (int i = 0; i < 100; i++) {
+            current = af.mul(current, start);
+        }
+        var loss = af.sum(current);
+        var tracked = Scope.trackedArrays().size();
+        af.grads(loss, start);
+        // Only the constant the seed is tiled from, the seed and the final gradient remain, rather than every partial
+        // gradient and sum.
+        assertEquals(tracked + 3, Scope.trackedArrays().size());
+    }
+
+    @Test
+    public void checkpoint() {
+        var x = af.create(1.0f, 2.0f, 3.0f);
+        var tracked = Scope.trackedArrays().size();
+        var y = af.checkpoint(() -> af.mul(af.exp(x), x));
+        // Only the result of the block is kept, its intermediates were released.
+        assertEquals(tracked + 1, Scope.trackedArrays().size());
+        assertArrayEquals(new float[]{2.7182817f, 14.778112f, 60.256611f}, data(y), 1E-4);
+        var grads = af.grads(af.sum(y), x);
+        assertArrayEquals(new float[]{5.4365635f, 22.167168f, 80.342148f}, data(grads), 1E-4);
+    }
+
+    @Test
+    public void checkpointOutsideScope() {
+        var scope = Scope.threadScope.get();
+        Scope.threadScope.remove();
+        try {
+            assertThrows(IllegalStateException.class, () -> af.checkpoint(() -> af.constant(1f)));
+        } finally {
+            Scope.threadScope.set(scope);
+        }
+    }
+
+    @Test
+    public void inference() {
+        var x = af.create(1.0f, 2.0f, 3.0f);
+        var y = af.inference(() -> {
+            var result = af.mul(af.exp(x), x);
+            assertTrue(af.scope().operations().isEmpty());
+            return result;
+        });
+        assertArrayEquals(new float[]{2.7182817f, 14.778112f, 60.256611f}, data(y), 1E-4);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void inferenceGrads() {
+        var x = af.create(1.0f, 2.0f, 3.0f);
+        var y = af.inference(() -> af.exp(x));
+        af.grads(af.sum(y), x);
+    }
+
     @Test
     public void gradientDescentSimpleOptimizer() {
         var a = af.params(() -> af.randu(F32, shape(n(5))), SGD.create());
@@ -696,6 +1067,340 @@ public class ArrayFireTest {
         });
     }
 
+    @Test
+    public void lazy() {
+        af.lazy(() -> {
+            var arr = af.create(new float[]{1, 2, 3});
+            var squared = af.mul(arr, arr);
+            assertFalse(squared.materialized());
+            assertArrayEquals(new float[]{1, 4, 9}, af.data(squared));
+            assertTrue(squared.materialized());
+        });
+    }
+
+    @Test
+    public void lazyScopeBytes() {
+        af.lazy(() -> {
+            var scope = af.scope();
+            var arr = af.create(new float[]{1, 2, 3, 4});
+            var squared = af.mul(arr, arr);
+            // Recorded operations only count once they are applied.
+            assertEquals(16, scope.liveBytes());
+            af.data(squared);
+            assertEquals(32, scope.liveBytes());
+        });
+    }
+
+    @Test
+    public void lazyCommonSubexpressions() {
+        af.lazy(() -> {
+            var arr = af.create(new float[]{0, 1});
+            var first = af.exp(arr);
+            var second = af.exp(arr);
+            assertArrayEquals(new float[]{1, 2.7182817f}, af.data(second));
+            assertSame(first.producer(), second.producer().aliasOf());
+            assertArrayEquals(new float[]{1, 2.7182817f}, af.data(first));
+        });
+    }
+
+    @Test
+    public void lazyOptimize() {
+        var a = af.params(() -> af.randu(F32, shape(n(5))), SGD.create());
+        var b = af.randu(F32, shape(n(5)));
+        var latestLoss = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < 50 && latestLoss >= 1E-10; i++) {
+            latestLoss = af.lazy(() -> {
+                var mul = af.mul(a, b);
+                var loss = af.pow(af.sub(af.sum(mul), af.constant(5f)), 2);
+                af.optimize(loss);
+                return af.data(loss).get(0);
+            });
+        }
+        assertEquals(0, latestLoss, 1E-10);
+    }
+
+    @Test
+    public void concurrentScopes() throws Exception {
+        try (var executor = Executors.newFixedThreadPool(2)) {
+            var futures = IntStream.range(0, 2).mapToObj(thread -> executor.submit(() -> {
+                for (int i = 0; i < 100; i++) {
+                    var value = (float) i;
+                    var sum = af.tidy(() -> af.data(af.sum(af.add(af.create(value, value), 1.0))).get(0));
+                    assertEquals(2 * value + 2, sum, 0);
+                }
+                return Scope.trackedContainers().size();
+            })).toList();
+            for (var future : futures) {
+                assertEquals(0, (int) future.get());
+            }
+        }
+    }
+
+    @Test
+    public void scratchReleasesFrames() {
+        long address;
+        try (var scratch = Scratch.open()) {
+            address = scratch.allocate(ValueLayout.JAVA_LONG).address();
+            try (var nested = Scratch.open()) {
+                assertTrue(nested.allocate(ValueLayout.JAVA_LONG).address() != address);
+            }
+        }
+        try (var scratch = Scratch.open()) {
+            assertEquals(address, scratch.allocate(ValueLayout.JAVA_LONG).address());
+        }
+    }
+
+    @Test
+    public void nativeCallsDontAllocate() {
+        assertThrows(IllegalStateException.class, Scratch::current);
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var thread = Thread.currentThread().threadId();
+        var output = Arena.global().allocate(ValueLayout.ADDRESS);
+        ToIntFunction<MemorySegment> call = ptr -> Status.AF_SUCCESS.code();
+        for (int round = 0; round < 2; round++) {
+            // The first round warms up class initialization and this thread's scratch allocator.
+            var before = threads.getThreadAllocatedBytes(thread);
+            for (int i = 0; i < 100_000; i++) {
+                handleStatus(() -> Status.AF_SUCCESS.code());
+                handleStatus(call, output);
+                try (var scratch = Scratch.open()) {
+                    assertSame(scratch, Scratch.current());
+                }
+            }
+            if (round == 1) {
+                // Allow for the measurement itself, but not a single byte per call.
+                assertTrue(threads.getThreadAllocatedBytes(thread) - before < 100_000);
+            }
+        }
+    }
+
+    @Test
+    public void releaseRecyclesHandle() {
+        var array = af.create(new float[]{1, 2});
+        var available = HandlePool.available();
+        array.release();
+        assertEquals(available + 1, HandlePool.available());
+        assertFalse(array.materialized());
+        assertThrows(IllegalStateException.class, array::dereference);
+    }
+
+    @Test
+    public void handlePoolConcurrentThreads() throws Exception {
+        var cells = ConcurrentHashMap.<Long>newKeySet();
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            var tasks = IntStream.range(0, 16).mapToObj(i -> executor.submit(() -> {
+                var acquired = IntStream.range(0, 1000).mapToObj(j -> HandlePool.acquire()).toList();
+                acquired.forEach(cell -> assertTrue(cells.add(cell.address())));
+                acquired.forEach(cell -> {
+                    cells.remove(cell.address());
+                    HandlePool.recycle(cell);
+                });
+            })).toList();
+            for (var task : tasks) {
+                task.get();
+            }
+        }
+        assertTrue(cells.isEmpty());
+    }
+
+    @Test
+    public void tidyAll() {
+        var x = af.create(new float[]{1, 2});
+        List<Supplier<Array<F32, ?>>> branches = List.of(
+            () -> af.add(af.mul(x, x), 1.0),
+            () -> af.sub(af.mul(x, 2.0), 1.0));
+        var results = af.tidyAll(branches);
+        assertArrayEquals(new float[]{2, 5}, af.data(results.get(0)));
+        assertArrayEquals(new float[]{1, 3}, af.data(results.get(1)));
+        assertTrue(results.stream().allMatch(result -> Scope.current().owns(result)));
+    }
+
+    @Test
+    public void tidyAllOutsideScope() {
+        var scope = Scope.threadScope.get();
+        Scope.threadScope.remove();
+        try {
+            assertThrows(IllegalStateException.class, () -> af.tidyAll(List.of(() -> af.constant(1f))));
+        } finally {
+            Scope.threadScope.set(scope);
+        }
+    }
+
+    @Test
+    public void evalPolicy() {
+        var x = af.create(new float[]{1, 2});
+        var y = af.tidy(new EvalPolicy(4, 100), () -> {
+            var result = x;
+            for (int i = 0; i < 10; i++) {
+                result = af.add(result, x);
+            }
+            assertTrue(af.scope().operations().stream().anyMatch(operation -> operation.name().equals("eval")));
+            return result;
+        });
+        assertArrayEquals(new float[]{11, 22}, af.data(y));
+    }
+
+    @Test
+    public void evalPolicyIgnoredInLazyScopes() {
+        var x = af.create(new float[]{1, 2});
+        var y = af.tidy(new EvalPolicy(4, 100), () -> af.lazy(() -> {
+            var result = x;
+            for (int i = 0; i < 10; i++) {
+                result = af.add(result, x);
+            }
+            assertTrue(af.scope().operations().stream().noneMatch(operation -> operation.name().equals("eval")));
+            return result;
+        }));
+        assertArrayEquals(new float[]{11, 22}, af.data(y));
+    }
+
+    @Test
+    public void async() {
+        var x = af.create(new float[]{1, 2});
+        var y = af.async(() -> {
+            assertTrue(af.scope().async());
+            var squared = af.mul(x, x);
+            assertArrayEquals(new float[]{1, 4}, af.data(squared));
+            return af.add(squared, x);
+        });
+        assertArrayEquals(new float[]{2, 6}, af.data(y));
+        assertTrue(Scope.current().owns(y));
+    }
+
+    @Test
+    public void asyncDereferenceRightAfterBuilding() {
+        var x = af.create(new float[]{1, 2});
+        af.async(() -> {
+            // Races the dispatch thread applying each operation against the calling thread reading its output.
+            for (int i = 0; i < 1000; i++) {
+                var squared = af.mul(x, x);
+                assertNotNull(squared.dereference());
+                squared.release();
+            }
+        });
+    }
+
+    @Test
+    public void asyncFailuresStayInTheirScope() throws Exception {
+        var x = af.create(new float[]{1});
+        var failed = new CountDownLatch(1);
+        var drained = new CountDownLatch(1);
+        try (var executor = Executors.newFixedThreadPool(2)) {
+            var failing = executor.submit(() -> af.async(() -> {
+                af.operation("fail").inputs(x).outputs().operation(() -> {
+                    throw new IllegalStateException("fail");
+                }).build();
+                af.operation("failed").inputs(x).outputs().operation(failed::countDown).build();
+                await(drained);
+            }));
+            var other = executor.submit(() -> af.async(() -> {
+                await(failed);
+                // Neither sees nor clears the failure of the other scope.
+                af.sync();
+                drained.countDown();
+            }));
+            other.get();
+            var e = assertThrows(ExecutionException.class, failing::get);
+            assertEquals("fail", e.getCause().getMessage());
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Test
+    public void compile() {
+        var square = af.compile(af.create(new float[]{0, 0}), x -> af.mul(x, x));
+        assertArrayEquals(new float[]{1, 4}, af.data(square.apply(af.create(new float[]{1, 2}))));
+        assertArrayEquals(new float[]{9, 16}, af.data(square.apply(af.create(new float[]{3, 4}))));
+    }
+
+    @Test
+    public void compileRejectsReadsWhileTracing() {
+        var example = af.create(new float[]{0, 0});
+        assertThrows(IllegalStateException.class, () -> af.compile(example, x -> af.eval(af.mul(x, x))));
+        assertThrows(IllegalStateException.class, () -> af.compile(example, x -> {
+            af.data(x);
+            return x;
+        }));
+    }
+
+    @Test
+    public void compileEliminatesDeadCodeAndConstants() {
+        var plan = af.compile(af.create(new float[]{0, 0}), x -> {
+            af.exp(x);
+            return af.mul(x, af.add(af.constant(F32, x.shape(), 1), af.constant(F32, x.shape(), 1)));
+        });
+        assertEquals(4, plan.size());
+        assertEquals(3, plan.constants());
+        assertArrayEquals(new float[]{2, 4}, af.data(plan.apply(af.create(new float[]{1, 2}))));
+        assertArrayEquals(new float[]{6, 8}, af.data(plan.apply(af.create(new float[]{3, 4}))));
+    }
+
+    @Test
+    public void compileMemoryPlan() {
+        var plan = af.compile(af.create(new float[]{0, 0}), x -> af.exp(af.exp(af.exp(af.exp(x)))));
+        // Each intermediate is released once the next exp has read it, so at most two are alive at once.
+        assertEquals(32, plan.memory().naivePeakBytes());
+        assertEquals(16, plan.memory().plannedPeakBytes());
+        assertEquals(2, plan.memory().buffers().size());
+        assertArrayEquals(new float[]{3814279.1f, 3814279.1f}, af.data(plan.apply(af.create(new float[]{0, 0}))), 1);
+        assertArrayEquals(new float[]{3814279.1f, 3814279.1f}, af.data(plan.apply(af.create(new float[]{0, 0}))), 1);
+    }
+
+    @Test
+    public void compileIndexByArray() {
+        var sorted = af.compile(af.create(new float[]{0, 0, 0}), x -> af.index(x, af.seq(af.sortIndex(x).indices())));
+        // The sort is only read through the index, so it must still be replayed.
+        assertEquals(2, sorted.size());
+        assertArrayEquals(new float[]{1, 2, 3}, af.data(sorted.apply(af.create(new float[]{3, 1, 2}))));
+        assertArrayEquals(new float[]{4, 5, 6}, af.data(sorted.apply(af.create(new float[]{6, 4, 5}))));
+    }
+
+    @Test
+    public void compileRecoversWithoutSpillingInputs() {
+        var input = af.create(new float[]{0, 1});
+        var attempts = new int[1];
+        var plan = af.compile(input, x -> {
+            var y = af.exp(x);
+            // Runs out of memory until every idle array has been spilled, see Spill#recover.
+            return af
+                       .operation("flaky")
+                       .inputs(x, y)
+                       .outputs(x.prototype())
+                       .operation(ptr -> attempts[0]++ < 3 ? Status.AF_ERR_NO_MEM.code()
+                                             : arrayfire_h.af_add(ptr, x.dereference(), y.dereference(), false))
+                       .build();
+        });
+        for (int i = 0; i < 2; i++) {
+            attempts[0] = 0;
+            assertArrayEquals(new float[]{1, 3.7182817f}, af.data(plan.apply(input)), 1E-5f);
+            assertEquals(4, attempts[0]);
+            assertNull(input.spilled());
+        }
+    }
+
+    @Test
+    public void compileOptimize() {
+        var a = af.params(() -> af.randu(F32, shape(n(5))), SGD.create());
+        var b = af.randu(F32, shape(n(5)));
+        var step = af.compile(b, input -> {
+            var loss = af.pow(af.sub(af.sum(af.mul(a, input)), af.constant(5f)), 2);
+            af.optimize(loss);
+            return loss;
+        });
+        var latestLoss = Float.POSITIVE_INFINITY;
+        for (int i = 0; i < 50 && latestLoss >= 1E-10; i++) {
+            latestLoss = af.tidy(() -> af.data(step.apply(b)).get(0));
+        }
+        assertEquals(0, latestLoss, 1E-10);
+    }
+
     @Test
     public void decodeEncodeU32() {
         var values = new int[]{0, 1, 2, Integer.MAX_VALUE};
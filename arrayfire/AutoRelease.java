@@ -0,0 +1,89 @@
+package arrayfire;
+
+import arrayfire.capi.arrayfire_h;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.ref.Cleaner;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Releases arrays that escaped every scope once they become unreachable, when enabled with
+ * {@link ArrayFire#setAutoRelease}. Only arrays that are explicitly untracked, or created outside of any scope by
+ * {@link ArrayFire#variable} and {@link ArrayFire#params}, are registered. Releasing an array explicitly cancels its
+ * automatic release.
+ */
+class AutoRelease {
+
+    private static final Cleaner cleaner = Cleaner.create();
+    private static volatile boolean enabled = false;
+    private static final AtomicLong registered = new AtomicLong();
+    private static final AtomicLong released = new AtomicLong();
+    private static final AtomicLong releasedBytes = new AtomicLong();
+
+    /**
+     * Releases an array's handle or spilled host copy, and returns its handle cell to the pool. Must not reference the
+     * array itself, or it would never become unreachable.
+     */
+    static class Cleanup implements Runnable {
+        private final long bytes;
+        // Cleared once the array is released explicitly.
+        private volatile MemorySegment cell;
+        private volatile MemorySegment spilled;
+
+        private Cleanup(MemorySegment cell, MemorySegment spilled, long bytes) {
+            this.cell = cell;
+            this.spilled = spilled;
+            this.bytes = bytes;
+        }
+
+        void spilled(MemorySegment spilled) {
+            this.spilled = spilled;
+        }
+
+        void cancel() {
+            cell = null;
+            spilled = null;
+        }
+
+        @Override
+        public void run() {
+            var cell = this.cell;
+            if (cell == null) {
+                return;
+            }
+            try {
+                if (spilled != null) {
+                    af.freePinned(spilled);
+                } else {
+                    var handle = cell.get(Array.LAYOUT, 0L);
+                    if (MemorySegment.NULL.equals(handle)) {
+                        return;
+                    }
+                    ArrayFire.handleStatus(() -> arrayfire_h.af_release_array(handle));
+                }
+                released.incrementAndGet();
+                releasedBytes.addAndGet(bytes);
+            } finally {
+                HandlePool.recycle(cell);
+            }
+        }
+    }
+
+    static void enabled(boolean enabled) {
+        AutoRelease.enabled = enabled;
+    }
+
+    static void register(Array<?, ?> array) {
+        if (!enabled || array.cleanup() != null || array instanceof ErrorArray) {
+            return;
+        }
+        var cleanup = new Cleanup(array.segment(), array.spilled(), array.bytes());
+        array.cleanup(cleanup);
+        cleaner.register(array, cleanup);
+        registered.incrementAndGet();
+    }
+
+    static AutoReleaseStats stats() {
+        return new AutoReleaseStats(enabled, registered.get(), released.get(), releasedBytes.get());
+    }
+}
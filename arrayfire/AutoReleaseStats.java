@@ -0,0 +1,13 @@
+package arrayfire;
+
+/**
+ * Counters of arrays released once unreachable, see {@link ArrayFire#setAutoRelease}.
+ *
+ * @param enabled       whether arrays are currently registered for automatic release.
+ * @param registered    the number of arrays that were registered for automatic release.
+ * @param released      the number of arrays that were released because they became unreachable, i.e. that would
+ *                      have leaked without automatic release.
+ * @param releasedBytes the device bytes of the arrays that were released because they became unreachable.
+ */
+public record AutoReleaseStats(boolean enabled, long registered, long released, long releasedBytes) {
+}
@@ -45,6 +45,21 @@ public class B8 implements DataType<B8.Meta> {
         public boolean[] createHeapArray(int length) {
             return new boolean[length];
         }
+
+        // Memory segments can't bulk copy boolean arrays.
+        @Override
+        public void copyFromHeap(boolean[] values, int valuesIndex, MemorySegment segment, long index, int length) {
+            for (int i = 0; i < length; i++) {
+                segment.setAtIndex(layout(), index + i, values[valuesIndex + i]);
+            }
+        }
+
+        @Override
+        public void copyToHeap(MemorySegment segment, long index, boolean[] values, int valuesIndex, int length) {
+            for (int i = 0; i < length; i++) {
+                values[valuesIndex + i] = segment.getAtIndex(layout(), index + i);
+            }
+        }
     }
 }
 
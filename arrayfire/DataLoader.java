@@ -0,0 +1,267 @@
+package arrayfire;
+
+import arrayfire.capi.arrayfire_h;
+import arrayfire.numbers.N;
+import arrayfire.numbers.Num;
+import arrayfire.numbers.U;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Iterates over shuffled batches of datasets held in host memory, which may be much larger than the device. Each
+ * dataset is added as a {@link Source}, with one sample per column, i.e. along D1. Every source of a loader has the
+ * same number of samples and is shuffled in the same order, e.g. images and their labels.
+ * <p>
+ * Batches are double-buffered: while the current batch is being used, the next one is gathered into pinned host
+ * buffers and uploaded to the device on a background thread, so steps don't stall on host to device transfers. The
+ * arrays of a batch are moved into the current scope when the batch is returned by its iterator.
+ * <p>
+ * The pinned buffers and the upload thread are held until the loader is disposed of, either explicitly or with the
+ * scope it was created in, so long-lived scopes should dispose of loaders once they are done with them.
+ */
+public class DataLoader implements MemoryContainer {
+
+    private static final int SLOTS = 2;
+
+    /**
+     * A dataset of samples along D1, or a range of them.
+     */
+    public static final class Source<T extends DataType<?>, D0 extends Num<D0>> {
+        private final HostArray<T, ?, ? extends Shape<D0, ?, U, U>> data;
+        private final int fromSample;
+        private final long sampleBytes;
+        // The pinned buffer of each slot that batches are gathered into.
+        private final List<MemorySegment> buffers = new ArrayList<>();
+
+        private Source(HostArray<T, ?, ? extends Shape<D0, ?, U, U>> data, int fromSample) {
+            this.data = data;
+            this.fromSample = fromSample;
+            this.sampleBytes = data.shape().d0().size() * data.type().meta().layout().byteSize();
+        }
+
+        private Shape<D0, N, U, U> shape(int samples) {
+            return af.shape(data.shape().d0(), samples);
+        }
+    }
+
+    /**
+     * The arrays of one batch, one per source.
+     */
+    public static final class Batch {
+        private final Map<Source<?, ?>, Array<?, ?>> arrays = new IdentityHashMap<>();
+
+        private Batch() {
+        }
+
+        @SuppressWarnings("unchecked")
+        public <T extends DataType<?>, D0 extends Num<D0>> Array<T, Shape<D0, N, U, U>> get(Source<T, D0> source) {
+            return (Array<T, Shape<D0, N, U, U>>) arrays.get(source);
+        }
+
+        public int size() {
+            return arrays.values().iterator().next().shape().d1().size();
+        }
+
+        private void release() {
+            arrays.values().forEach(af::release);
+        }
+    }
+
+    private final int batchSize;
+    private final Random random;
+    private final int device;
+    private final List<Source<?, ?>> sources = new ArrayList<>();
+    private final ExecutorService uploader = Executors.newSingleThreadExecutor(runnable -> Thread
+                                                                                         .ofPlatform()
+                                                                                         .name("arrayfire-loader")
+                                                                                         .daemon()
+                                                                                         .unstarted(runnable));
+    private int samples = -1;
+    // The batch being prefetched, if any, which nothing else owns yet.
+    private Future<Batch> prefetched;
+
+    /**
+     * @param seed the seed of the per-epoch shuffles.
+     */
+    DataLoader(int batchSize, long seed) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException(String.format("Batch size must be positive but was %d", batchSize));
+        }
+        this.batchSize = batchSize;
+        this.random = new Random(seed);
+        this.device = af.deviceId();
+    }
+
+    /**
+     * Adds every sample of the given dataset.
+     */
+    public <T extends DataType<?>, D0 extends Num<D0>> Source<T, D0> add(
+        HostArray<T, ?, ? extends Shape<D0, ?, U, U>> data) {
+        return add(data, 0, data.shape().d1().size());
+    }
+
+    /**
+     * Adds the samples of the given dataset from the given index, inclusive, to the given index, exclusive, e.g. to
+     * split a dataset into train and test sets.
+     */
+    public <T extends DataType<?>, D0 extends Num<D0>> Source<T, D0> add(
+        HostArray<T, ?, ? extends Shape<D0, ?, U, U>> data, int fromSample, int toSample) {
+        if (fromSample < 0 || toSample > data.shape().d1().size() || fromSample >= toSample) {
+            throw new IllegalArgumentException(
+                String.format("Invalid sample range [%d, %d) of %d samples", fromSample, toSample,
+                    data.shape().d1().size()));
+        }
+        if (samples != -1 && samples != toSample - fromSample) {
+            throw new IllegalArgumentException(
+                String.format("Expected %d samples but got %d", samples, toSample - fromSample));
+        }
+        awaitPrefetched();
+        samples = toSample - fromSample;
+        var source = new Source<>(data, fromSample);
+        for (int slot = 0; slot < SLOTS; slot++) {
+            source.buffers.add(af.allocPinned(batchSize * source.sampleBytes));
+        }
+        sources.add(source);
+        return source;
+    }
+
+    /**
+     * Returns the number of batches in each epoch.
+     */
+    public int batches() {
+        return (samples + batchSize - 1) / batchSize;
+    }
+
+    /**
+     * Shuffles the samples and returns an iterator over the batches of the new epoch. Starting a new epoch abandons
+     * any previous one.
+     */
+    public Iterator<Batch> epoch() {
+        if (sources.isEmpty()) {
+            throw new IllegalStateException("No sources have been added");
+        }
+        awaitPrefetched();
+        var order = new int[samples];
+        for (int i = 0; i < samples; i++) {
+            order[i] = i;
+        }
+        for (int i = samples - 1; i > 0; i--) {
+            var j = random.nextInt(i + 1);
+            var swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+        var batches = batches();
+        prefetched = uploader.submit(() -> load(order, 0));
+        return new Iterator<>() {
+            private int next = 0;
+
+            @Override
+            public boolean hasNext() {
+                return next < batches;
+            }
+
+            @Override
+            public Batch next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                var batch = take();
+                next++;
+                if (next < batches) {
+                    var index = next;
+                    prefetched = uploader.submit(() -> load(order, index));
+                }
+                var scope = af.scope();
+                batch.arrays.values().forEach(scope::register);
+                return batch;
+            }
+        };
+    }
+
+    /**
+     * Gathers the samples of the given batch into the pinned buffers of its slot, and uploads them. Runs on the
+     * uploader thread.
+     */
+    private Batch load(int[] order, int index) {
+        af.setDeviceId(device);
+        var from = index * batchSize;
+        var count = Math.min(batchSize, samples - from);
+        var batch = new Batch();
+        try {
+            for (var source : sources) {
+                batch.arrays.put(source, upload(source, order, from, count, index % SLOTS));
+            }
+        } catch (RuntimeException e) {
+            batch.release();
+            throw e;
+        }
+        return batch;
+    }
+
+    private static <T extends DataType<?>, D0 extends Num<D0>> Array<T, Shape<D0, N, U, U>> upload(
+        Source<T, D0> source, int[] order, int from, int count, int slot) {
+        var buffer = source.buffers.get(slot);
+        var data = source.data.segment();
+        for (int i = 0; i < count; i++) {
+            MemorySegment.copy(data, (source.fromSample + order[from + i]) * source.sampleBytes, buffer,
+                i * source.sampleBytes, source.sampleBytes);
+        }
+        var type = source.data.type();
+        var shape = source.shape(count);
+        var array = new Array<>(type, shape);
+        try (var scratch = Scratch.open()) {
+            var dims = scratch.allocateArray(ValueLayout.JAVA_LONG, shape.dims());
+            ArrayFire.handleStatus(
+                () -> arrayfire_h.af_create_array(array.segment(), buffer, shape.ndims(), dims, type.code()));
+        }
+        return array;
+    }
+
+    private Batch take() {
+        try {
+            return prefetched.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : new IllegalStateException(e.getCause());
+        } finally {
+            prefetched = null;
+        }
+    }
+
+    /**
+     * Waits for a batch that is being prefetched but will never be returned, and releases it.
+     */
+    private void awaitPrefetched() {
+        if (prefetched != null) {
+            take().release();
+        }
+    }
+
+    @Override
+    public void dispose() {
+        if (uploader.isShutdown()) {
+            return;
+        }
+        try {
+            awaitPrefetched();
+        } finally {
+            uploader.shutdown();
+            sources.forEach(source -> source.buffers.forEach(af::freePinned));
+        }
+    }
+}
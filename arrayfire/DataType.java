@@ -20,6 +20,23 @@ public interface DataType<DTM extends DataType.Meta<?, ?, ?>> {
         public void set(MemorySegment segment, int index, JavaType value);
 
         public JavaArrayType createHeapArray(int length);
+
+        /**
+         * Copies the given Java array into the segment, starting at the given element of each, with a single bulk copy.
+         */
+        public default void copyFromHeap(JavaArrayType values, int valuesIndex, MemorySegment segment, long index,
+                                         int length) {
+            MemorySegment.copy(values, valuesIndex, segment, layout(), index * layout().byteSize(), length);
+        }
+
+        /**
+         * Copies elements of the segment into the given Java array, starting at the given element of each, with a
+         * single bulk copy.
+         */
+        public default void copyToHeap(MemorySegment segment, long index, JavaArrayType values, int valuesIndex,
+                                       int length) {
+            MemorySegment.copy(segment, layout(), index * layout().byteSize(), values, valuesIndex, length);
+        }
     }
 }
 
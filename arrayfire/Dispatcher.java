@@ -0,0 +1,190 @@
+package arrayfire;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Applies operations in the order they are submitted on a dedicated native dispatch thread, so that the threads
+ * building the graph don't wait for native calls, see {@link ArrayFire#async(Runnable)}.
+ * <p>
+ * Each async scope submits its operations through its own {@link Channel}. Every submitted operation gets a ticket,
+ * and the tickets of completed operations are published under this object's lock. A thread that needs the outputs of
+ * an operation waits for its ticket, see {@link #await}, and a thread that needs every operation its scope submitted so
+ * far to have run waits for the channel's latest ticket, see {@link #drain}. Operations that fail are rethrown from
+ * both, and only to the scope that submitted them.
+ * <p>
+ * Operations are applied with the dispatch thread's own inference scope as the current scope, so that nested scopes
+ * created while applying an operation, e.g. by {@link ArrayFire#tidyOperation}, stay on the dispatch thread.
+ */
+class Dispatcher {
+
+    // Bounds how far the building threads can run ahead of the device.
+    private static final int CAPACITY = 4096;
+    private static Dispatcher instance;
+
+    private record Task(Operation operation, int device) {
+    }
+
+    /**
+     * The operations submitted by one async scope and its nested scopes.
+     */
+    class Channel {
+        // The ticket of the latest operation submitted through this channel, guarded by submitLock.
+        private long submitted;
+        // The first failure not yet rethrown by a drain, guarded by the dispatcher.
+        private Throwable failure;
+
+        private Channel() {
+        }
+
+        Dispatcher dispatcher() {
+            return Dispatcher.this;
+        }
+    }
+
+    private final BlockingQueue<Task> queue = new ArrayBlockingQueue<>(CAPACITY);
+    private final Thread thread;
+    // Orders ticket assignment with enqueueing.
+    private final Object submitLock = new Object();
+    private long submitted;
+    // Guarded by this.
+    private long completed;
+    // Only accessed by the dispatch thread.
+    private int device = -1;
+
+    private Dispatcher() {
+        thread = Thread.ofPlatform().name("arrayfire-dispatch").daemon().unstarted(this::run);
+        thread.start();
+    }
+
+    static synchronized Dispatcher instance() {
+        if (instance == null) {
+            instance = new Dispatcher();
+        }
+        return instance;
+    }
+
+    boolean onDispatchThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Returns a new channel for an async scope to submit its operations through.
+     */
+    Channel channel() {
+        return new Channel();
+    }
+
+    /**
+     * Queues the operation to be applied on the given device, blocking while the queue is full.
+     */
+    void submit(Channel channel, Operation operation, int device) {
+        synchronized (submitLock) {
+            operation.dispatch(channel, ++submitted);
+            channel.submitted = submitted;
+            var task = new Task(operation, device);
+            // The ticket is taken, so the task must be queued even if this thread is interrupted.
+            var interrupted = false;
+            while (true) {
+                try {
+                    queue.put(task);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Waits until the given operation has been applied, rethrowing its failure if it failed.
+     */
+    void await(Operation operation) {
+        var channel = operation.channel();
+        synchronized (this) {
+            waitFor(operation.ticket());
+            if (operation.failure() != null && channel.failure == operation.failure()) {
+                channel.failure = null;
+            }
+        }
+        if (operation.failure() != null) {
+            throw rethrow(operation.failure());
+        }
+    }
+
+    /**
+     * Waits until every operation submitted through the given channel so far has been applied, rethrowing the first
+     * of them that failed since the last drain. Returns straight away on the dispatch thread, where it would never
+     * finish.
+     */
+    void drain(Channel channel) {
+        if (onDispatchThread()) {
+            return;
+        }
+        long ticket;
+        synchronized (submitLock) {
+            ticket = channel.submitted;
+        }
+        Throwable thrown;
+        synchronized (this) {
+            waitFor(ticket);
+            thrown = channel.failure;
+            channel.failure = null;
+        }
+        if (thrown != null) {
+            throw rethrow(thrown);
+        }
+    }
+
+    private void waitFor(long ticket) {
+        while (completed < ticket) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private static RuntimeException rethrow(Throwable throwable) {
+        if (throwable instanceof Error error) {
+            throw error;
+        }
+        return throwable instanceof RuntimeException e ? e : new IllegalStateException(throwable);
+    }
+
+    private void run() {
+        Scope.threadScope.set(new Scope(null, Scope.Options.DEFAULT.withInference(true)));
+        while (true) {
+            Task task;
+            try {
+                task = queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            var operation = task.operation();
+            try {
+                if (task.device() != device) {
+                    af.setDeviceId(task.device());
+                    device = task.device();
+                }
+                operation.apply();
+            } catch (Throwable throwable) {
+                operation.fail(throwable);
+                synchronized (this) {
+                    if (operation.channel().failure == null) {
+                        operation.channel().failure = throwable;
+                    }
+                }
+            }
+            synchronized (this) {
+                completed = operation.ticket();
+                notifyAll();
+            }
+        }
+    }
+}
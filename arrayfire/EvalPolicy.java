@@ -0,0 +1,51 @@
+package arrayfire;
+
+import java.util.Set;
+
+/**
+ * When to evaluate the JIT trees that ArrayFire builds from element-wise operations, see
+ * {@link ArrayFire#tidy(EvalPolicy, Runnable)}. ArrayFire fuses chains of element-wise operations into a single kernel
+ * that is compiled and launched once the value is needed, so a long chain built up in a loop either produces a huge
+ * kernel or is evaluated at whatever point happens to need it.
+ * <p>
+ * Each unevaluated array tracks the depth and node count of the tree that produces it. Once an operation produces an
+ * array whose tree exceeds either limit, it is evaluated together with every other unevaluated array of the scope whose
+ * tree has reached half of a limit, with a single call to af_eval_multiple, so that trees that would soon exceed the
+ * limits are cut at the same point rather than one by one.
+ *
+ * @param maxDepth the longest chain of element-wise operations in a tree.
+ * @param maxNodes the most element-wise operations in a tree, counting shared subtrees once per use.
+ */
+public record EvalPolicy(int maxDepth, int maxNodes) {
+
+    /**
+     * Limits that keep kernels well under the JIT length at which ArrayFire's backends evaluate trees themselves.
+     */
+    public static final EvalPolicy DEFAULT = new EvalPolicy(32, 128);
+
+    // Operations that ArrayFire adds to a JIT tree rather than evaluating their inputs.
+    private static final Set<String> ELEMENT_WISE = Set.of("add", "sub", "mul", "div", "pow", "exp", "log", "sqrt",
+        "abs", "signbit", "cast", "constant", "minof", "maxof", "clamp", "le", "ge", "eq", "and");
+
+    public EvalPolicy {
+        if (maxDepth <= 0 || maxNodes <= 0) {
+            throw new IllegalArgumentException(
+                String.format("Limits must be positive but were depth %d and nodes %d", maxDepth, maxNodes));
+        }
+    }
+
+    static boolean elementWise(String operationName) {
+        return ELEMENT_WISE.contains(operationName);
+    }
+
+    boolean exceeds(Array<?, ?> array) {
+        return array.jitDepth() > maxDepth || array.jitNodes() > maxNodes;
+    }
+
+    /**
+     * Returns true if the array's tree is deep enough to be worth evaluating along with one that exceeds the limits.
+     */
+    boolean ripe(Array<?, ?> array) {
+        return 2 * array.jitDepth() >= maxDepth || 2L * array.jitNodes() >= maxNodes;
+    }
+}
@@ -1,6 +1,7 @@
 package arrayfire;
 
 import java.util.List;
+import java.util.function.Predicate;
 
 @FunctionalInterface
 interface GradFunction {
@@ -8,6 +9,21 @@ interface GradFunction {
     @SuppressWarnings("rawtypes")
     List<Array<?, ?>> grads(List<Array> resultGrads);
 
+    /**
+     * A gradient function that is told which of its inputs gradients are required for, and returns null for the
+     * others.
+     */
+    @SuppressWarnings("rawtypes")
+    interface Selective extends GradFunction {
+
+        List<Array<?, ?>> grads(List<Array> resultGrads, Predicate<Array> required);
+
+        @Override
+        default List<Array<?, ?>> grads(List<Array> resultGrads) {
+            return grads(resultGrads, array -> true);
+        }
+    }
+
     interface Unary<RT extends Array<?, ?>, IT extends Array<?, ?>> {
         IT grads(RT result, RT grads);
     }
@@ -19,4 +35,9 @@ interface GradFunction {
     interface Binary<RT extends Array<?, ?>, I0T extends Array<?, ?>, I1T extends Array<?, ?>> {
         ArrayPair<I0T, I1T> grads(RT result, RT grads);
     }
+
+    @SuppressWarnings("rawtypes")
+    interface Nary<RT extends Array<?, ?>> {
+        List<Array<?, ?>> grads(RT result, RT grads, Predicate<Array> required);
+    }
 }
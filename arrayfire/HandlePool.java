@@ -0,0 +1,71 @@
+package arrayfire;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out the native cells that hold the af_array pointer of each {@link Array}. Cells are carved from large slabs
+ * and recycled once their array is released, rather than allocating a GC-managed arena for every array.
+ * <p>
+ * Free cells are kept on a lock-free stack shared by all threads, so arrays created and released on many threads,
+ * including virtual threads and the auto release cleaner, never contend on a lock, and no cells are stranded with a
+ * thread that has finished. Only allocating a new slab is synchronized.
+ * <p>
+ * Slabs are never freed, so the pool holds as many cells as were ever live at once. The cell of an array that is
+ * never released, e.g. one untracked from its scope, is not recycled.
+ */
+class HandlePool {
+
+    private static final int SLAB_CELLS = 4096;
+    // A read-only null pointer that released arrays point to, so they can't read or write a recycled cell.
+    static final MemorySegment RELEASED = Arena.global().allocate(Array.LAYOUT).asReadOnly();
+    private static final ConcurrentLinkedDeque<MemorySegment> free = new ConcurrentLinkedDeque<>();
+    private static final AtomicLong allocated = new AtomicLong();
+
+    static MemorySegment acquire() {
+        var cell = free.pollFirst();
+        if (cell == null) {
+            cell = grow();
+        }
+        cell.set(Array.LAYOUT, 0L, MemorySegment.NULL);
+        return cell;
+    }
+
+    static void recycle(MemorySegment cell) {
+        free.offerFirst(cell);
+    }
+
+    /**
+     * Allocates a new slab, keeping one of its cells for the caller, unless another thread recycled or allocated cells
+     * while this one waited.
+     */
+    private static synchronized MemorySegment grow() {
+        var cell = free.pollFirst();
+        if (cell != null) {
+            return cell;
+        }
+        var slab = Arena.global().allocate(Array.LAYOUT.byteSize() * SLAB_CELLS, Array.LAYOUT.byteAlignment());
+        for (int i = SLAB_CELLS - 1; i > 0; i--) {
+            free.offerFirst(slab.asSlice(i * Array.LAYOUT.byteSize(), Array.LAYOUT));
+        }
+        allocated.addAndGet(SLAB_CELLS);
+        return slab.asSlice(0, Array.LAYOUT);
+    }
+
+    /**
+     * Returns the number of cells allocated across all slabs.
+     */
+    static long allocated() {
+        return allocated.get();
+    }
+
+    /**
+     * Returns the number of cells that are not held by any array. Counts every free cell, so it is only meant for
+     * tests and diagnostics, and is only exact while no other thread acquires or recycles cells.
+     */
+    static long available() {
+        return free.size();
+    }
+}
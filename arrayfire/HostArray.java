@@ -2,6 +2,7 @@ package arrayfire;
 
 import java.lang.foreign.Arena;
 import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
 
 public class HostArray<DT extends DataType<? extends DataType.Meta<?, JT, ?>>, JT, S extends Shape<?, ?, ?, ?>> implements MemoryContainer {
 
@@ -12,6 +13,17 @@ public class HostArray<DT extends DataType<? extends DataType.Meta<?, JT, ?>>, J
     final Arena arena;
     final MemorySegment segment;
 
+    /**
+     * Wraps an existing segment, e.g. a memory-mapped file, which is freed when the given arena is closed on dispose.
+     */
+    HostArray(DT type, S shape, Arena arena, MemorySegment segment) {
+        this.type = type;
+        this.shape = shape;
+        this.pinned = false;
+        this.arena = arena;
+        this.segment = segment;
+    }
+
     public HostArray(DT type, S shape, boolean pinned) {
         this.type = type;
         this.shape = shape;
@@ -50,6 +62,65 @@ public class HostArray<DT extends DataType<? extends DataType.Meta<?, JT, ?>>, J
         type.meta().set(segment, index, value);
     }
 
+    // Unboxed accessors, for elements whose Java type is the accessor's primitive type.
+
+    public byte getByte(int index) {
+        return segment.getAtIndex(layout(ValueLayout.OfByte.class), index);
+    }
+
+    public void setByte(int index, byte value) {
+        segment.setAtIndex(layout(ValueLayout.OfByte.class), index, value);
+    }
+
+    public short getShort(int index) {
+        return segment.getAtIndex(layout(ValueLayout.OfShort.class), index);
+    }
+
+    public void setShort(int index, short value) {
+        segment.setAtIndex(layout(ValueLayout.OfShort.class), index, value);
+    }
+
+    public int getInt(int index) {
+        return segment.getAtIndex(layout(ValueLayout.OfInt.class), index);
+    }
+
+    public void setInt(int index, int value) {
+        segment.setAtIndex(layout(ValueLayout.OfInt.class), index, value);
+    }
+
+    public long getLong(int index) {
+        return segment.getAtIndex(layout(ValueLayout.OfLong.class), index);
+    }
+
+    public void setLong(int index, long value) {
+        segment.setAtIndex(layout(ValueLayout.OfLong.class), index, value);
+    }
+
+    public float getFloat(int index) {
+        return segment.getAtIndex(layout(ValueLayout.OfFloat.class), index);
+    }
+
+    public void setFloat(int index, float value) {
+        segment.setAtIndex(layout(ValueLayout.OfFloat.class), index, value);
+    }
+
+    public double getDouble(int index) {
+        return segment.getAtIndex(layout(ValueLayout.OfDouble.class), index);
+    }
+
+    public void setDouble(int index, double value) {
+        segment.setAtIndex(layout(ValueLayout.OfDouble.class), index, value);
+    }
+
+    private <L extends ValueLayout> L layout(Class<L> layoutClass) {
+        var layout = type.meta().layout();
+        if (!layoutClass.isInstance(layout)) {
+            throw new IllegalArgumentException(
+                String.format("Cannot access %s elements as %s", layout.carrier(), layoutClass.getSimpleName()));
+        }
+        return layoutClass.cast(layout);
+    }
+
     @Override
     public void dispose() {
         if (pinned) {
@@ -16,6 +16,12 @@ public class Index<D extends Num<D>> {
         MemoryLayout.unionLayout(ValueLayout.ADDRESS.withName("arr"), Seq.LAYOUT.withName("seq")).withName("union"),
         ValueLayout.JAVA_BOOLEAN.withName("isSeq"), ValueLayout.JAVA_BOOLEAN.withName("isBatch"),
         MemoryLayout.paddingLayout(6));
+    private static final long ARR_OFFSET =
+        LAYOUT.byteOffset(PathElement.groupElement("union"), PathElement.groupElement("arr"));
+    private static final long SEQ_OFFSET =
+        LAYOUT.byteOffset(PathElement.groupElement("union"), PathElement.groupElement("seq"));
+    private static final long IS_SEQ_OFFSET = LAYOUT.byteOffset(PathElement.groupElement("isSeq"));
+    private static final long IS_BATCH_OFFSET = LAYOUT.byteOffset(PathElement.groupElement("isBatch"));
 
     private final Array<?, ?> arr;
     private final Seq seq;
@@ -44,16 +50,20 @@ public class Index<D extends Num<D>> {
 
     void emigrate(MemorySegment segment) {
         if (arr != null) {
-            segment.set(ValueLayout.ADDRESS,
-                LAYOUT.byteOffset(PathElement.groupElement("union"), PathElement.groupElement("arr")),
-                arr.dereference());
+            segment.set(ValueLayout.ADDRESS, ARR_OFFSET, arr.dereference());
         }
         if (seq != null) {
-            seq.emigrate(
-                segment.asSlice(LAYOUT.byteOffset(PathElement.groupElement("union"), PathElement.groupElement("seq"))));
+            seq.emigrate(segment.asSlice(SEQ_OFFSET));
         }
-        segment.set(ValueLayout.JAVA_BOOLEAN, LAYOUT.byteOffset(PathElement.groupElement("isSeq")), seq != null);
-        segment.set(ValueLayout.JAVA_BOOLEAN, LAYOUT.byteOffset(PathElement.groupElement("isBatch")), false);
+        segment.set(ValueLayout.JAVA_BOOLEAN, IS_SEQ_OFFSET, seq != null);
+        segment.set(ValueLayout.JAVA_BOOLEAN, IS_BATCH_OFFSET, false);
+    }
+
+    /**
+     * Returns the array of indices, or null if this indexes by a sequence.
+     */
+    Array<?, ?> array() {
+        return arr;
     }
 
     int size() {
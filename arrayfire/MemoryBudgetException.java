@@ -0,0 +1,14 @@
+package arrayfire;
+
+/**
+ * Thrown when a scope opened with a memory budget would hold more device memory than its budget allows, see
+ * {@link ArrayFire#tidy(long, java.util.function.Supplier)}.
+ */
+public class MemoryBudgetException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public MemoryBudgetException(String message) {
+        super(message);
+    }
+}
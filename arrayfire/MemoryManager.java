@@ -0,0 +1,93 @@
+package arrayfire;
+
+import java.lang.foreign.MemorySegment;
+
+/**
+ * Manages the device memory that ArrayFire allocates for arrays, in place of ArrayFire's default memory manager, see
+ * {@link ArrayFire#setMemoryManager}. ArrayFire calls into the manager from whichever thread is executing an
+ * operation, so implementations must be thread safe.
+ * <p>
+ * Every buffer handed out by {@link #allocate} is locked by ArrayFire until it calls {@link #unlock}, and may also be
+ * locked by the user, e.g. while a raw device pointer is held. A buffer can only be reused once both locks have been
+ * released.
+ */
+public interface MemoryManager {
+
+    /**
+     * Called once the manager is installed, with access to the backend's native allocator.
+     */
+    void initialize(Device device);
+
+    /**
+     * Called when the manager is uninstalled, after which it must not touch the device. ArrayFire never releases the
+     * buffers still allocated through the manager once it is gone, so it should free them, which invalidates any arrays
+     * that still use them.
+     */
+    void shutdown();
+
+    /**
+     * Returns a device buffer of at least the given number of bytes, throwing an {@link ArrayFireException} with
+     * {@link Status#AF_ERR_NO_MEM} if there is not enough memory.
+     */
+    MemorySegment allocate(long bytes, boolean userLock);
+
+    /**
+     * Returns the number of bytes of the given buffer, or 0 if it wasn't allocated by this manager.
+     */
+    long allocated(MemorySegment pointer);
+
+    void unlock(MemorySegment pointer, boolean userUnlock);
+
+    void userLock(MemorySegment pointer);
+
+    void userUnlock(MemorySegment pointer);
+
+    boolean isUserLocked(MemorySegment pointer);
+
+    /**
+     * Releases any memory that is held but not in use, called by {@link ArrayFire#deviceGc()} and when ArrayFire runs
+     * out of memory.
+     */
+    void signalMemoryCleanup();
+
+    /**
+     * Returns how full the active device is, from 0 to 1.
+     */
+    float memoryPressure();
+
+    /**
+     * Returns true if a JIT tree with a result of the given number of bytes should be evaluated straight away rather
+     * than growing further.
+     */
+    boolean jitTreeExceedsMemoryPressure(long bytes);
+
+    /**
+     * Called when a device starts being managed.
+     */
+    default void addMemoryManagement(int deviceId) {
+    }
+
+    /**
+     * Called when a device stops being managed, after which any memory held for it should be released.
+     */
+    default void removeMemoryManagement(int deviceId) {
+    }
+
+    default String info() {
+        return toString();
+    }
+
+    /**
+     * The backend's native allocator for the active device.
+     */
+    interface Device {
+
+        int activeDeviceId();
+
+        long maxMemoryBytes(int deviceId);
+
+        MemorySegment allocate(long bytes);
+
+        void free(MemorySegment pointer);
+    }
+}
@@ -0,0 +1,147 @@
+package arrayfire;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * A static memory plan for a fixed sequence of operations, e.g. the operations recorded by a {@link Scope} or traced by
+ * a {@link Plan}. Computes the live range of every array the operations produce, schedules each array to be released
+ * right after its last use, and assigns arrays to a small set of reusable buffers.
+ * <p>
+ * ArrayFire allocates the output of each operation itself, so the buffer assignment isn't enforced. Instead, releasing
+ * arrays in the planned order hands their buffers back to ArrayFire's memory manager just before the operations that
+ * the plan assigned them to, which can then reuse them.
+ */
+@SuppressWarnings("rawtypes")
+public class MemoryPlan {
+
+    private final List<List<Array>> releases;
+    private final long naivePeakBytes;
+    private final long plannedPeakBytes;
+    private final List<Long> buffers;
+
+    private MemoryPlan(List<List<Array>> releases, long naivePeakBytes, long plannedPeakBytes, List<Long> buffers) {
+        this.releases = releases;
+        this.naivePeakBytes = naivePeakBytes;
+        this.plannedPeakBytes = plannedPeakBytes;
+        this.buffers = buffers;
+    }
+
+    /**
+     * Plans the memory of the given operations, in the order they will be applied.
+     *
+     * @param retained arrays that must outlive the operations, e.g. a result or a variable, which are never released.
+     */
+    public static MemoryPlan create(List<Operation> operations, Predicate<Array> retained) {
+        var lastUses = new IdentityHashMap<Array, Integer>();
+        for (int i = 0; i < operations.size(); i++) {
+            var operation = operations.get(i);
+            for (var input : operation.inputs()) {
+                lastUses.put(input, i);
+            }
+            // Aliased operations read the outputs of the operation they alias rather than their inputs.
+            if (operation.aliasOf() != null) {
+                for (var output : operation.aliasOf().outputs()) {
+                    lastUses.put(output, i);
+                }
+            }
+        }
+
+        var releases = new ArrayList<List<Array>>();
+        // Free buffers by size, best fit is the smallest free buffer that is large enough.
+        var freeBuffers = new TreeMap<Long, Integer>();
+        var bufferOf = new IdentityHashMap<Array, Long>();
+        var bytesOf = new IdentityHashMap<Array, Long>();
+        var buffers = new ArrayList<Long>();
+        long naivePeakBytes = 0;
+        long liveBytes = 0;
+        long plannedPeakBytes = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            var operation = operations.get(i);
+            for (var output : operation.outputs()) {
+                // Aliased outputs share the memory of the outputs they alias.
+                var bytes = operation.aliasOf() == null ? output.bytes() : 0L;
+                bytesOf.put(output, bytes);
+                naivePeakBytes += bytes;
+                liveBytes += bytes;
+                if (bytes == 0) {
+                    continue;
+                }
+                var buffer = freeBuffers.ceilingKey(bytes);
+                if (buffer == null) {
+                    buffer = bytes;
+                    buffers.add(bytes);
+                } else {
+                    freeBuffers.computeIfPresent(buffer, (size, count) -> count == 1 ? null : count - 1);
+                }
+                bufferOf.put(output, buffer);
+            }
+            plannedPeakBytes = Math.max(plannedPeakBytes, liveBytes);
+
+            var released = new ArrayList<Array>();
+            for (var input : operation.inputs()) {
+                if (lastUses.get(input) == i && bytesOf.containsKey(input) && !released.contains(input)) {
+                    released.add(input);
+                }
+            }
+            if (operation.aliasOf() != null) {
+                for (var output : operation.aliasOf().outputs()) {
+                    if (lastUses.get(output) == i && !released.contains(output)) {
+                        released.add(output);
+                    }
+                }
+            }
+            // Outputs that are never read, e.g. unused results of an operation with several outputs.
+            for (var output : operation.outputs()) {
+                if (!lastUses.containsKey(output)) {
+                    released.add(output);
+                }
+            }
+            released.removeIf(retained);
+            for (var array : released) {
+                liveBytes -= bytesOf.get(array);
+                if (bufferOf.containsKey(array)) {
+                    freeBuffers.merge(bufferOf.get(array), 1, Integer::sum);
+                }
+            }
+            releases.add(released);
+        }
+        return new MemoryPlan(releases, naivePeakBytes, plannedPeakBytes, buffers);
+    }
+
+    /**
+     * Returns the arrays to release right after the operation at the given index has been applied.
+     */
+    List<Array> releasesAfter(int index) {
+        return releases.get(index);
+    }
+
+    /**
+     * Returns the peak number of bytes held by the arrays the operations produce if none of them are released until
+     * all operations have been applied, as when a scope only releases its arrays once it is disposed.
+     */
+    public long naivePeakBytes() {
+        return naivePeakBytes;
+    }
+
+    /**
+     * Returns the peak number of bytes held by the arrays the operations produce when each is released after its last
+     * use.
+     */
+    public long plannedPeakBytes() {
+        return plannedPeakBytes;
+    }
+
+    /**
+     * Returns the sizes of the reusable buffers that the arrays were assigned to, in the order they are first needed.
+     */
+    public List<Long> buffers() {
+        return Collections.unmodifiableList(buffers);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MemoryPlan{naivePeakBytes=%d, plannedPeakBytes=%d, buffers=%d, bufferBytes=%d}",
+            naivePeakBytes, plannedPeakBytes, buffers.size(), buffers.stream().mapToLong(Long::longValue).sum());
+    }
+}
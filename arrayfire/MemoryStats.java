@@ -0,0 +1,35 @@
+package arrayfire;
+
+import java.util.Map;
+
+/**
+ * Counters of a {@link PoolingMemoryManager}.
+ *
+ * @param allocations    the number of buffers requested by ArrayFire.
+ * @param frees          the number of buffers returned to the pool.
+ * @param forcedFrees    the number of buffers still in use that were freed when the manager shut down.
+ * @param cacheHits      the number of requests served from the pool.
+ * @param cacheMisses    the number of requests that needed a new native allocation.
+ * @param liveBytes      the bytes of all buffers currently in use.
+ * @param requestedBytes the bytes requested for all buffers currently in use, before rounding up to a size class.
+ * @param cachedBytes    the bytes of all buffers held in the pool for reuse.
+ * @param peakBytes      the peak of live and cached bytes, i.e. the most device memory the pool ever held.
+ * @param missesBySize   the number of cache misses by size class, showing which shapes don't get reused.
+ */
+public record MemoryStats(long allocations, long frees, long forcedFrees, long cacheHits, long cacheMisses,
+                          long liveBytes, long requestedBytes, long cachedBytes, long peakBytes,
+                          Map<Long, Long> missesBySize) {
+
+    /**
+     * Returns the fraction of held memory that is not used by any array, either cached or lost to rounding requests up
+     * to a size class.
+     */
+    public double fragmentation() {
+        var heldBytes = liveBytes + cachedBytes;
+        return heldBytes == 0 ? 0 : 1 - (double) requestedBytes / heldBytes;
+    }
+
+    public double hitRate() {
+        return allocations == 0 ? 0 : (double) cacheHits / allocations;
+    }
+}
@@ -0,0 +1,265 @@
+package arrayfire;
+
+import arrayfire.capi.arrayfire_h;
+
+import java.lang.foreign.AddressLayout;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+
+/**
+ * Installs a {@link MemoryManager} through ArrayFire's af_memory_manager API, creating an upcall for each of its
+ * callbacks. Exceptions thrown by the manager are returned to ArrayFire as error codes, since they can't unwind
+ * through native frames.
+ */
+class NativeMemoryManager implements MemoryManager.Device {
+
+    private static final Linker LINKER = Linker.nativeLinker();
+    private static final ValueLayout.OfInt ERR = ValueLayout.JAVA_INT;
+    private static final ValueLayout.OfLong SIZE_T = ValueLayout.JAVA_LONG;
+    private static final AddressLayout PTR = ValueLayout.ADDRESS;
+
+    private final MemoryManager manager;
+    // Keeps the upcalls alive for as long as ArrayFire may call them.
+    private final Arena arena = Arena.ofShared();
+    private final MemorySegment handle;
+
+    NativeMemoryManager(MemoryManager manager) {
+        this.manager = manager;
+        var result = arena.allocate(PTR);
+        ArrayFire.handleStatus(() -> arrayfire_h.af_create_memory_manager(result));
+        this.handle = result.get(PTR, 0);
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_initialize_fn(handle,
+            upcall("initialize", FunctionDescriptor.of(ERR, PTR))));
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_shutdown_fn(handle,
+            upcall("shutdown", FunctionDescriptor.of(ERR, PTR))));
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_alloc_fn(handle,
+            upcall("alloc", FunctionDescriptor.of(ERR, PTR, PTR, ERR, ERR, PTR, ERR))));
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_allocated_fn(handle,
+            upcall("allocated", FunctionDescriptor.of(ERR, PTR, PTR, PTR))));
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_unlock_fn(handle,
+            upcall("unlock", FunctionDescriptor.of(ERR, PTR, PTR, ERR))));
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_signal_memory_cleanup_fn(handle,
+            upcall("signalMemoryCleanup", FunctionDescriptor.of(ERR, PTR))));
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_print_info_fn(handle,
+            upcall("printInfo", FunctionDescriptor.of(ERR, PTR, PTR, ERR))));
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_user_lock_fn(handle,
+            upcall("userLock", FunctionDescriptor.of(ERR, PTR, PTR))));
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_user_unlock_fn(handle,
+            upcall("userUnlock", FunctionDescriptor.of(ERR, PTR, PTR))));
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_is_user_locked_fn(handle,
+            upcall("isUserLocked", FunctionDescriptor.of(ERR, PTR, PTR, PTR))));
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_get_memory_pressure_fn(handle,
+            upcall("memoryPressure", FunctionDescriptor.of(ERR, PTR, PTR))));
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_jit_tree_exceeds_memory_pressure_fn(handle,
+            upcall("jitTreeExceedsMemoryPressure", FunctionDescriptor.of(ERR, PTR, PTR, SIZE_T))));
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_add_memory_management_fn(handle,
+            upcall("addMemoryManagement", FunctionDescriptor.ofVoid(PTR, ERR))));
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_set_remove_memory_management_fn(handle,
+            upcall("removeMemoryManagement", FunctionDescriptor.ofVoid(PTR, ERR))));
+    }
+
+    MemoryManager manager() {
+        return manager;
+    }
+
+    void install() {
+        ArrayFire.handleStatus(() -> arrayfire_h.af_set_memory_manager(handle));
+    }
+
+    /**
+     * Restores ArrayFire's default memory manager, shutting this one down, and frees the upcalls.
+     */
+    void uninstall() {
+        ArrayFire.handleStatus(arrayfire_h::af_unset_memory_manager);
+        ArrayFire.handleStatus(() -> arrayfire_h.af_release_memory_manager(handle));
+        arena.close();
+    }
+
+    private MemorySegment upcall(String name, FunctionDescriptor descriptor) {
+        try {
+            var type = descriptor.toMethodType();
+            var target = MethodHandles.lookup().findVirtual(NativeMemoryManager.class, name, type).bindTo(this);
+            return LINKER.upcallStub(target, descriptor, arena);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int status(Throwable throwable) {
+        if (throwable instanceof ArrayFireException e) {
+            return e.status().code();
+        }
+        return Status.AF_ERR_INTERNAL.code();
+    }
+
+    private int initialize(MemorySegment handle) {
+        try {
+            manager.initialize(this);
+            return Status.AF_SUCCESS.code();
+        } catch (Throwable throwable) {
+            return status(throwable);
+        }
+    }
+
+    private int shutdown(MemorySegment handle) {
+        try {
+            manager.shutdown();
+            return Status.AF_SUCCESS.code();
+        } catch (Throwable throwable) {
+            return status(throwable);
+        }
+    }
+
+    private int alloc(MemorySegment handle, MemorySegment result, int userLock, int ndims, MemorySegment dims,
+                      int elementSize) {
+        try {
+            long bytes = elementSize;
+            var nativeDims = dims.reinterpret(ndims * ValueLayout.JAVA_LONG.byteSize());
+            for (int i = 0; i < ndims; i++) {
+                bytes *= nativeDims.getAtIndex(ValueLayout.JAVA_LONG, i);
+            }
+            var pointer = manager.allocate(bytes, userLock != 0);
+            result.reinterpret(PTR.byteSize()).set(PTR, 0, pointer);
+            return Status.AF_SUCCESS.code();
+        } catch (Throwable throwable) {
+            return status(throwable);
+        }
+    }
+
+    private int allocated(MemorySegment handle, MemorySegment result, MemorySegment pointer) {
+        try {
+            result.reinterpret(SIZE_T.byteSize()).set(SIZE_T, 0, manager.allocated(pointer));
+            return Status.AF_SUCCESS.code();
+        } catch (Throwable throwable) {
+            return status(throwable);
+        }
+    }
+
+    private int unlock(MemorySegment handle, MemorySegment pointer, int userUnlock) {
+        try {
+            manager.unlock(pointer, userUnlock != 0);
+            return Status.AF_SUCCESS.code();
+        } catch (Throwable throwable) {
+            return status(throwable);
+        }
+    }
+
+    private int signalMemoryCleanup(MemorySegment handle) {
+        try {
+            manager.signalMemoryCleanup();
+            return Status.AF_SUCCESS.code();
+        } catch (Throwable throwable) {
+            return status(throwable);
+        }
+    }
+
+    private int printInfo(MemorySegment handle, MemorySegment description, int deviceId) {
+        try {
+            // Like ArrayFire's default manager, the caller's description heads the stats, e.g. from af_print_mem_info.
+            var header = description.equals(MemorySegment.NULL) ? "" :
+                description.reinterpret(Long.MAX_VALUE).getUtf8String(0);
+            System.out.println(header.isEmpty() ? manager.info() : header + System.lineSeparator() + manager.info());
+            return Status.AF_SUCCESS.code();
+        } catch (Throwable throwable) {
+            return status(throwable);
+        }
+    }
+
+    private int userLock(MemorySegment handle, MemorySegment pointer) {
+        try {
+            manager.userLock(pointer);
+            return Status.AF_SUCCESS.code();
+        } catch (Throwable throwable) {
+            return status(throwable);
+        }
+    }
+
+    private int userUnlock(MemorySegment handle, MemorySegment pointer) {
+        try {
+            manager.userUnlock(pointer);
+            return Status.AF_SUCCESS.code();
+        } catch (Throwable throwable) {
+            return status(throwable);
+        }
+    }
+
+    private int isUserLocked(MemorySegment handle, MemorySegment pointer, MemorySegment result) {
+        try {
+            result.reinterpret(ERR.byteSize()).set(ERR, 0, manager.isUserLocked(pointer) ? 1 : 0);
+            return Status.AF_SUCCESS.code();
+        } catch (Throwable throwable) {
+            return status(throwable);
+        }
+    }
+
+    private int memoryPressure(MemorySegment handle, MemorySegment result) {
+        try {
+            result.reinterpret(ValueLayout.JAVA_FLOAT.byteSize()).set(ValueLayout.JAVA_FLOAT, 0,
+                manager.memoryPressure());
+            return Status.AF_SUCCESS.code();
+        } catch (Throwable throwable) {
+            return status(throwable);
+        }
+    }
+
+    private int jitTreeExceedsMemoryPressure(MemorySegment handle, MemorySegment result, long bytes) {
+        try {
+            result.reinterpret(ERR.byteSize()).set(ERR, 0, manager.jitTreeExceedsMemoryPressure(bytes) ? 1 : 0);
+            return Status.AF_SUCCESS.code();
+        } catch (Throwable throwable) {
+            return status(throwable);
+        }
+    }
+
+    private void addMemoryManagement(MemorySegment handle, int deviceId) {
+        try {
+            manager.addMemoryManagement(deviceId);
+        } catch (Throwable ignored) {
+            // Nothing to report an error to.
+        }
+    }
+
+    private void removeMemoryManagement(MemorySegment handle, int deviceId) {
+        try {
+            manager.removeMemoryManagement(deviceId);
+        } catch (Throwable ignored) {
+            // Nothing to report an error to.
+        }
+    }
+
+    @Override
+    public int activeDeviceId() {
+        try (var scratch = Scratch.open()) {
+            var result = scratch.allocate(ValueLayout.JAVA_INT);
+            ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_get_active_device_id(handle, result));
+            return result.get(ValueLayout.JAVA_INT, 0);
+        }
+    }
+
+    @Override
+    public long maxMemoryBytes(int deviceId) {
+        try (var scratch = Scratch.open()) {
+            var result = scratch.allocate(SIZE_T);
+            ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_get_max_memory_size(handle, result, deviceId));
+            return result.get(SIZE_T, 0);
+        }
+    }
+
+    @Override
+    public MemorySegment allocate(long bytes) {
+        try (var scratch = Scratch.open()) {
+            var result = scratch.allocate(PTR);
+            ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_native_alloc(handle, result, bytes));
+            return result.get(PTR, 0);
+        }
+    }
+
+    @Override
+    public void free(MemorySegment pointer) {
+        ArrayFire.handleStatus(() -> arrayfire_h.af_memory_manager_native_free(handle, pointer));
+    }
+}
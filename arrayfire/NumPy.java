@@ -0,0 +1,332 @@
+package arrayfire;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Reads and writes NumPy .npy files, and .npz archives of them without compression, as host arrays, see
+ * {@link ArrayFire#loadNpy} and {@link ArrayFire#saveNpy}.
+ * <p>
+ * ArrayFire is column-major, so a Fortran-ordered NumPy array has the same dimensions as its host array, and a
+ * C-ordered one has them reversed: element [i, j] of a C-ordered (rows, columns) array is element (j, i) of a
+ * (columns, rows) host array. Either way the bytes are laid out identically, so arrays are memory-mapped rather than
+ * copied, unless an archive stores one at an offset that isn't a multiple of its element size. Arrays are always
+ * written in Fortran order.
+ */
+class NumPy {
+
+    private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+    private static final int ALIGNMENT = 64;
+    private static final ValueLayout.OfShort U16 = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfInt U32 = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong U64 = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([^']*)'");
+    private static final Pattern FORTRAN_ORDER = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+    private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+    private static final char BYTE_ORDER = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? '<' : '>';
+    // Data is copied through a heap buffer of at most this many bytes.
+    private static final int CHUNK_BYTES = 1 << 20;
+
+    /**
+     * The parsed header of an array, whose data starts at the given offset.
+     */
+    private record Header(DataType<?> type, Shape<?, ?, ?, ?> shape, long dataOffset) {
+
+        long bytes() {
+            return shape.capacity() * type.meta().layout().byteSize();
+        }
+    }
+
+    static HostArray<?, ?, ?> loadNpy(Path path) {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return map(channel, 0, channel.size(), path.toString());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static Map<String, HostArray<?, ?, ?>> loadNpz(Path path) {
+        var result = new LinkedHashMap<String, HostArray<?, ?, ?>>();
+        try (var arena = Arena.ofConfined(); var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            var directory = centralDirectory(file, path);
+            var offset = directory[1];
+            for (long i = 0; i < directory[0]; i++) {
+                if (file.get(U32, offset) != 0x02014b50) {
+                    throw new IllegalArgumentException(String.format("Corrupt zip directory in %s", path));
+                }
+                var method = Short.toUnsignedInt(file.get(U16, offset + 10));
+                long size = Integer.toUnsignedLong(file.get(U32, offset + 20));
+                var nameLength = Short.toUnsignedInt(file.get(U16, offset + 28));
+                var extraLength = Short.toUnsignedInt(file.get(U16, offset + 30));
+                var commentLength = Short.toUnsignedInt(file.get(U16, offset + 32));
+                long localOffset = Integer.toUnsignedLong(file.get(U32, offset + 42));
+                var name = new String(file.asSlice(offset + 46, nameLength).toArray(ValueLayout.JAVA_BYTE),
+                    StandardCharsets.UTF_8);
+                // Sizes and offsets that don't fit in 32 bits are moved to a zip64 extra field, in this order.
+                var extra = file.asSlice(offset + 46 + nameLength, extraLength);
+                for (long e = 0; e + 4 <= extraLength; ) {
+                    var id = Short.toUnsignedInt(extra.get(U16, e));
+                    var length = Short.toUnsignedInt(extra.get(U16, e + 2));
+                    if (id == 0x0001) {
+                        var field = e + 4;
+                        if (Integer.toUnsignedLong(file.get(U32, offset + 24)) == 0xFFFFFFFFL) {
+                            field += 8;
+                        }
+                        if (size == 0xFFFFFFFFL) {
+                            size = extra.get(U64, field);
+                            field += 8;
+                        }
+                        if (localOffset == 0xFFFFFFFFL) {
+                            localOffset = extra.get(U64, field);
+                        }
+                    }
+                    e += 4 + length;
+                }
+                if (method != 0) {
+                    throw new IllegalArgumentException(
+                        String.format("Entry %s of %s is compressed, only stored entries are supported", name, path));
+                }
+                var dataOffset = localOffset + 30 + Short.toUnsignedInt(file.get(U16, localOffset + 26)) +
+                                     Short.toUnsignedInt(file.get(U16, localOffset + 28));
+                var key = name.endsWith(".npy") ? name.substring(0, name.length() - 4) : name;
+                result.put(key, map(channel, dataOffset, size, path + ":" + name));
+                offset += 46 + nameLength + extraLength + commentLength;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            result.values().forEach(HostArray::dispose);
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of entries and the offset of the central directory of the given zip file.
+     */
+    private static long[] centralDirectory(MemorySegment file, Path path) {
+        // The end of central directory record is followed by a comment of at most 65535 bytes.
+        for (long offset = file.byteSize() - 22; offset >= Math.max(0, file.byteSize() - 22 - 65535); offset--) {
+            if (file.get(U32, offset) != 0x06054b50) {
+                continue;
+            }
+            long entries = Short.toUnsignedInt(file.get(U16, offset + 10));
+            long directoryOffset = Integer.toUnsignedLong(file.get(U32, offset + 16));
+            if ((entries == 0xFFFF || directoryOffset == 0xFFFFFFFFL) && offset >= 20 &&
+                    file.get(U32, offset - 20) == 0x07064b50) {
+                var zip64Offset = file.get(U64, offset - 12);
+                entries = file.get(U64, zip64Offset + 32);
+                directoryOffset = file.get(U64, zip64Offset + 48);
+            }
+            return new long[]{entries, directoryOffset};
+        }
+        throw new IllegalArgumentException(String.format("%s is not a zip file", path));
+    }
+
+    /**
+     * Maps the .npy file stored in the given region of the channel.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static HostArray<?, ?, ?> map(FileChannel channel, long offset, long size, String name)
+        throws IOException {
+        var arena = Arena.ofShared();
+        try {
+            var npy = channel.map(FileChannel.MapMode.READ_ONLY, offset, size, arena);
+            var header = parseHeader(npy, name);
+            if (header.dataOffset() + header.bytes() > size) {
+                throw new IllegalArgumentException(String.format("%s is truncated", name));
+            }
+            var data = npy.asSlice(header.dataOffset(), header.bytes());
+            if ((offset + header.dataOffset()) % header.type().meta().layout().byteSize() == 0) {
+                return new HostArray(header.type(), header.shape(), arena, data);
+            }
+            // Misaligned for the element accessors, so copy it instead.
+            var copy = new HostArray(header.type(), header.shape(), false);
+            MemorySegment.copy(data, 0, copy.segment(), 0, header.bytes());
+            arena.close();
+            return copy;
+        } catch (IOException | RuntimeException e) {
+            if (arena.scope().isAlive()) {
+                arena.close();
+            }
+            throw e;
+        }
+    }
+
+    private static Header parseHeader(MemorySegment npy, String name) {
+        if (npy.byteSize() < 10 || !Arrays.equals(npy.asSlice(0, 6).toArray(ValueLayout.JAVA_BYTE), MAGIC)) {
+            throw new IllegalArgumentException(String.format("%s is not a .npy file", name));
+        }
+        var major = npy.get(ValueLayout.JAVA_BYTE, 6);
+        long headerOffset = major == 1 ? 10 : 12;
+        long headerLength = major == 1 ? Short.toUnsignedInt(npy.get(U16, 8)) : Integer.toUnsignedLong(
+            npy.get(U32, 8));
+        var header = new String(npy.asSlice(headerOffset, headerLength).toArray(ValueLayout.JAVA_BYTE),
+            StandardCharsets.ISO_8859_1);
+        var descr = DESCR.matcher(header);
+        var fortranOrder = FORTRAN_ORDER.matcher(header);
+        var shape = SHAPE.matcher(header);
+        if (!descr.find() || !fortranOrder.find() || !shape.find()) {
+            throw new IllegalArgumentException(String.format("Invalid .npy header in %s: %s", name, header));
+        }
+        var dims = Arrays
+                       .stream(shape.group(1).split(","))
+                       .map(String::trim)
+                       .filter(dim -> !dim.isEmpty())
+                       .mapToInt(Integer::parseInt)
+                       .toArray();
+        if (dims.length > 4) {
+            throw new IllegalArgumentException(
+                String.format("%s has %d dimensions, at most 4 are supported", name, dims.length));
+        }
+        if (fortranOrder.group(1).equals("False")) {
+            // C order, so the last NumPy dimension varies fastest, like ArrayFire's first.
+            for (int i = 0; i < dims.length / 2; i++) {
+                var swap = dims[i];
+                dims[i] = dims[dims.length - 1 - i];
+                dims[dims.length - 1 - i] = swap;
+            }
+        }
+        return new Header(type(descr.group(1), name), shape(dims), headerOffset + headerLength);
+    }
+
+    private static DataType<?> type(String descr, String name) {
+        // Single byte types have no byte order.
+        var order = descr.charAt(0);
+        if (order != '|' && order != '=' && order != BYTE_ORDER) {
+            throw new IllegalArgumentException(String.format("%s has non-native byte order %s", name, descr));
+        }
+        var dataType = switch (descr.substring(1)) {
+            case "u1" -> DataTypeEnum.U8;
+            case "b1" -> DataTypeEnum.B8;
+            case "i4" -> DataTypeEnum.S32;
+            case "u4" -> DataTypeEnum.U32;
+            case "i8" -> DataTypeEnum.S64;
+            case "u8" -> DataTypeEnum.U64;
+            case "f2" -> DataTypeEnum.F16;
+            case "f4" -> DataTypeEnum.F32;
+            case "f8" -> DataTypeEnum.F64;
+            default -> throw new IllegalArgumentException(String.format("%s has unsupported type %s", name, descr));
+        };
+        return ArrayFire.dataType(dataType.code());
+    }
+
+    private static String descr(DataType<?> type) {
+        return switch (DataTypeEnum.fromCode(type.code())) {
+            case U8 -> "|u1";
+            case B8 -> "|b1";
+            case S32 -> BYTE_ORDER + "i4";
+            case U32 -> BYTE_ORDER + "u4";
+            case S64 -> BYTE_ORDER + "i8";
+            case U64 -> BYTE_ORDER + "u8";
+            case F16 -> BYTE_ORDER + "f2";
+            case F32 -> BYTE_ORDER + "f4";
+            case F64 -> BYTE_ORDER + "f8";
+            default -> throw new IllegalArgumentException(String.format("Unsupported data type %s", type));
+        };
+    }
+
+    private static Shape<?, ?, ?, ?> shape(int[] dims) {
+        return switch (dims.length) {
+            case 0 -> af.shape(1);
+            case 1 -> af.shape(dims[0]);
+            case 2 -> af.shape(dims[0], dims[1]);
+            case 3 -> af.shape(dims[0], dims[1], dims[2]);
+            default -> af.shape(dims[0], dims[1], dims[2], dims[3]);
+        };
+    }
+
+    /**
+     * Returns the header of a .npy file holding the given array, padded so that its data is aligned.
+     */
+    private static byte[] header(HostArray<?, ?, ?> array) {
+        var dims = Arrays.stream(array.shape().dims()).mapToObj(Long::toString).collect(Collectors.joining(", "));
+        var dict = String.format("{'descr': '%s', 'fortran_order': True, 'shape': (%s%s), }", descr(array.type()),
+            dims, array.shape().ndims() == 1 ? "," : "");
+        var version = dict.length() + 11 > 0xFFFF ? 2 : 1;
+        var prefixLength = version == 1 ? 10 : 12;
+        var padding = (ALIGNMENT - (prefixLength + dict.length() + 1) % ALIGNMENT) % ALIGNMENT;
+        var text = dict + " ".repeat(padding) + "\n";
+        var bytes = new byte[prefixLength + text.length()];
+        var segment = MemorySegment.ofArray(bytes);
+        MemorySegment.copy(MAGIC, 0, segment, ValueLayout.JAVA_BYTE, 0, MAGIC.length);
+        segment.set(ValueLayout.JAVA_BYTE, 6, (byte) version);
+        if (version == 1) {
+            segment.set(U16, 8, (short) text.length());
+        } else {
+            segment.set(U32, 8, text.length());
+        }
+        MemorySegment.copy(text.getBytes(StandardCharsets.ISO_8859_1), 0, segment, ValueLayout.JAVA_BYTE,
+            prefixLength, text.length());
+        return bytes;
+    }
+
+    static void saveNpy(Path path, HostArray<?, ?, ?> array) {
+        try (var out = new BufferedOutputStream(Files.newOutputStream(path))) {
+            out.write(header(array));
+            forEachChunk(array.segment(), (buffer, length) -> out.write(buffer, 0, length));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static void saveNpz(Path path, Map<String, ? extends HostArray<?, ?, ?>> arrays) {
+        try (var zip = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            for (var entry : arrays.entrySet()) {
+                var header = header(entry.getValue());
+                var data = entry.getValue().segment();
+                // Stored entries need their size and checksum up front.
+                var crc = new CRC32();
+                crc.update(header);
+                forEachChunk(data, (buffer, length) -> crc.update(buffer, 0, length));
+                var zipEntry = new ZipEntry(entry.getKey() + ".npy");
+                zipEntry.setMethod(ZipEntry.STORED);
+                zipEntry.setSize(header.length + data.byteSize());
+                zipEntry.setCompressedSize(header.length + data.byteSize());
+                zipEntry.setCrc(crc.getValue());
+                zip.putNextEntry(zipEntry);
+                zip.write(header);
+                forEachChunk(data, (buffer, length) -> zip.write(buffer, 0, length));
+                zip.closeEntry();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private interface ChunkConsumer {
+        void accept(byte[] buffer, int length) throws IOException;
+    }
+
+    /**
+     * Copies the given data through a heap buffer one chunk at a time, since the buffers of shared and mapped segments
+     * can't be handed to streams and checksums directly.
+     */
+    private static void forEachChunk(MemorySegment data, ChunkConsumer consumer) throws IOException {
+        var buffer = new byte[(int) Math.max(1, Math.min(CHUNK_BYTES, data.byteSize()))];
+        for (long offset = 0; offset < data.byteSize(); offset += buffer.length) {
+            var length = (int) Math.min(buffer.length, data.byteSize() - offset);
+            MemorySegment.copy(data, ValueLayout.JAVA_BYTE, offset, buffer, 0, length);
+            consumer.accept(buffer, length);
+        }
+    }
+}
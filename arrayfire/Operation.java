@@ -1,13 +1,16 @@
 package arrayfire;
 
+import arrayfire.capi.arrayfire_h;
 import arrayfire.utils.Functions;
 
 import java.lang.foreign.MemorySegment;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.function.Consumer;
-import java.util.function.Function;
+import java.util.function.ToIntBiFunction;
+import java.util.function.ToIntFunction;
 
 @SuppressWarnings("rawtypes")
 public class Operation {
@@ -16,8 +19,17 @@ public class Operation {
     private final List<Array> outputs = new ArrayList<>();
     private Consumer<List<Array>> apply;
     private GradFunction grads;
-
-    private boolean executed = false;
+    private List<Object> attributes;
+    private Operation aliasOf;
+    // Set for operations that must be applied on the thread that registered them, see Builder#confined.
+    private boolean confined;
+    // Set once the operation is queued on a dispatch thread, see Scope#async.
+    private Dispatcher.Channel channel;
+    private long ticket;
+    private Throwable failure;
+
+    // Written by the dispatch thread and read by the thread that built the operation.
+    private volatile boolean executed = false;
 
     public String name() {
         return name;
@@ -32,12 +44,105 @@ public class Operation {
     }
 
     public void apply() {
-        if (!executed) {
-            apply.accept(outputs);
-            executed = true;
+        if (!executed && channel != null && !channel.dispatcher().onDispatchThread()) {
+            channel.dispatcher().await(this);
+        } else if (!executed) {
+            var frame = Spill.enter();
+            try {
+                try {
+                    apply.accept(outputs);
+                } catch (ArrayFireException e) {
+                    if (e.status() != Status.AF_ERR_NO_MEM) {
+                        throw e;
+                    }
+                    Spill.recover(frame, () -> apply.accept(outputs));
+                }
+                executed = true;
+                // Counting the outputs may exceed a budget, which must spill older arrays rather than the outputs.
+                for (var output : outputs) {
+                    output.used();
+                    Scope.materialized(output);
+                }
+            } finally {
+                Spill.exit(frame);
+            }
         }
     }
 
+    public boolean executed() {
+        return executed;
+    }
+
+    /**
+     * The parameters of a pure operation besides its inputs, or null if the operation isn't known to be pure (e.g. it
+     * is random or has side effects). Two pure operations with equal names, attributes and inputs compute the same
+     * values.
+     */
+    public List<Object> attributes() {
+        return attributes;
+    }
+
+    /**
+     * Returns the operation whose outputs this operation shares, if it was found to be a duplicate of it.
+     */
+    public Operation aliasOf() {
+        return aliasOf;
+    }
+
+    /**
+     * Replaces the computation of this operation with new references to the outputs of the given equivalent operation,
+     * which must be applied first.
+     */
+    void alias(Operation canonical) {
+        aliasOf = canonical;
+        apply = (outputs) -> {
+            for (int i = 0; i < outputs.size(); i++) {
+                var output = outputs.get(i);
+                var source = canonical.outputs.get(i);
+                af.handleStatus(() -> arrayfire_h.af_retain_array(output.segment(), source.dereference()));
+            }
+        };
+    }
+
+    boolean confined() {
+        return confined;
+    }
+
+    /**
+     * Hands the operation to the dispatcher of the given channel, which applies it once every operation with a lower
+     * ticket has been applied.
+     */
+    void dispatch(Dispatcher.Channel channel, long ticket) {
+        this.channel = channel;
+        this.ticket = ticket;
+    }
+
+    Dispatcher.Channel channel() {
+        return channel;
+    }
+
+    long ticket() {
+        return ticket;
+    }
+
+    /**
+     * Records that applying the operation on the dispatch thread failed, to be rethrown to the thread awaiting it.
+     */
+    void fail(Throwable failure) {
+        this.failure = failure;
+    }
+
+    Throwable failure() {
+        return failure;
+    }
+
+    /**
+     * Allows the operation to be applied again, used when replaying a {@link Plan}.
+     */
+    void reset() {
+        executed = false;
+    }
+
     GradFunction grads() {
         return grads;
     }
@@ -45,40 +150,106 @@ public class Operation {
     public static class Builder {
 
         private final Operation operation = new Operation();
+        private final Scope scope = af.scope();
+        // Inference scopes only need the outputs, see Scope#inference.
+        private final boolean recording = scope == null || !scope.inference();
+        // Outputs of dispatched operations wait for their producer when dereferenced, see Scope#async.
+        private final boolean producing = recording || (scope != null && scope.async());
+        // The deepest and total JIT trees of the inputs, see EvalPolicy.
+        private int inputDepth;
+        private long inputNodes;
 
         public Builder name(String name) {
             operation.name = name;
             return this;
         }
 
+        /**
+         * Marks the operation as pure, with the given parameters besides its inputs, see {@link Operation#attributes()}.
+         */
+        public Builder pure(Object... attributes) {
+            if (recording) {
+                operation.attributes = Arrays.asList(attributes);
+            }
+            return this;
+        }
+
+        private void output(Prototype<?, ?> prototype) {
+            var array = new Array<>(prototype);
+            if (producing) {
+                array.producer(operation);
+            }
+            if (EvalPolicy.elementWise(operation.name)) {
+                array.jit(inputDepth + 1, (int) Math.min(Integer.MAX_VALUE, inputNodes + 1));
+            }
+            operation.outputs.add(array);
+        }
+
+        /**
+         * Marks the operation as managing containers of the calling thread's scopes, so that it is always applied on
+         * that thread rather than dispatched, see {@link Scope#async}.
+         */
+        public Builder confined() {
+            operation.confined = true;
+            return this;
+        }
+
+        private void input(Array<?, ?> input) {
+            if (EvalPolicy.elementWise(operation.name)) {
+                inputDepth = Math.max(inputDepth, input.jitDepth());
+                inputNodes += input.jitNodes();
+            } else {
+                // Any other operation evaluates its inputs.
+                input.jit(0, 0);
+            }
+        }
+
         public Nullary inputs() {
             return new Nullary();
         }
 
         public <IT extends Array<?, ?>> Unary<IT> inputs(IT input) {
-            operation.inputs.add(input);
+            if (recording) {
+                operation.inputs.add(input);
+            }
+            input(input);
             return new Unary<>();
         }
 
         public <I0T extends DataType<?>, I0S extends Shape<?, ?, ?, ?>, I1T extends DataType<?>, I1S extends Shape<?, ?, ?, ?>> Binary<Array<I0T, I0S>, Array<I1T, I1S>> inputs(
             Array<I0T, I0S> left, Array<I1T, I1S> right) {
-            operation.inputs.add(left);
-            operation.inputs.add(right);
+            if (recording) {
+                operation.inputs.add(left);
+                operation.inputs.add(right);
+            }
+            input(left);
+            input(right);
             return new Binary<>();
         }
 
+        /**
+         * For operations with any number of inputs, e.g. {@link ArrayFire#checkpoint}.
+         */
+        public Nary inputs(List<? extends Array<?, ?>> inputs) {
+            if (recording) {
+                operation.inputs.addAll(inputs);
+            }
+            inputs.forEach(this::input);
+            return new Nary();
+        }
+
         public class Nullary {
 
             public <OT extends DataType<?>, OS extends Shape<?, ?, ?, ?>> Single<Array<OT, OS>> outputs(
                 Prototype<OT, OS> prototype) {
-                operation.outputs.add(new Array<>(prototype));
+                output(prototype);
                 return new Single<>();
             }
 
             public class Single<OT extends Array<?, ?>> {
 
-                public Single<OT> operation(Function<MemorySegment, Integer> function) {
-                    operation.apply = (outputs) -> af.handleStatus(() -> function.apply(outputs.getFirst().segment()));
+                public Single<OT> operation(ToIntFunction<MemorySegment> function) {
+                    operation.apply = (outputs) -> af.handleStatus(function, outputs.getFirst().segment());
                     return this;
                 }
 
@@ -98,22 +269,22 @@ public class Operation {
 
             public <OT extends DataType<?>, OS extends Shape<?, ?, ?, ?>> Single<Array<OT, OS>> outputs(
                 Prototype<OT, OS> prototype) {
-                operation.outputs.add(new Array<>(prototype));
+                output(prototype);
                 return new Single<>();
             }
 
             public <O0T extends DataType<?>, O0S extends Shape<?, ?, ?, ?>, O1T extends DataType<?>, O1S extends Shape<?, ?, ?, ?>> Pair<Array<O0T, O0S>, Array<O1T, O1S>> outputs(
                 Prototype<O0T, O0S> left, Prototype<O1T, O1S> right) {
-                operation.outputs.add(new Array<>(left));
-                operation.outputs.add(new Array<>(right));
+                output(left);
+                output(right);
                 return new Pair<>();
             }
 
             public <O0T extends DataType<?>, O0S extends Shape<?, ?, ?, ?>, O1T extends DataType<?>, O1S extends Shape<?, ?, ?, ?>, O2T extends DataType<?>, O2S extends Shape<?, ?, ?, ?>> Trio<Array<O0T, O0S>, Array<O1T, O1S>, Array<O2T, O2S>> outputs(
                 Prototype<O0T, O0S> left, Prototype<O1T, O1S> middle, Prototype<O2T, O2S> right) {
-                operation.outputs.add(new Array<>(left));
-                operation.outputs.add(new Array<>(middle));
-                operation.outputs.add(new Array<>(right));
+                output(left);
+                output(middle);
+                output(right);
                 return new Trio<>();
             }
 
@@ -132,17 +303,19 @@ public class Operation {
 
             public class Single<OT extends Array<?, ?>> {
 
-                public Single<OT> operation(Function<MemorySegment, Integer> function) {
-                    operation.apply = (outputs) -> af.handleStatus(() -> function.apply(outputs.getFirst().segment()));
+                public Single<OT> operation(ToIntFunction<MemorySegment> function) {
+                    operation.apply = (outputs) -> af.handleStatus(function, outputs.getFirst().segment());
                     return this;
                 }
 
                 @SuppressWarnings("unchecked")
                 public Single<OT> grads(GradFunction.Unary<OT, IT> unaryGradFunction) {
-                    operation.grads = (grads) -> {
-                        var inputGrad = unaryGradFunction.grads((OT) operation.outputs.getFirst(), (OT) grads.getFirst());
-                        return List.of(inputGrad);
-                    };
+                    if (recording) {
+                        operation.grads = (grads) -> {
+                            var inputGrad = unaryGradFunction.grads((OT) operation.outputs.getFirst(), (OT) grads.getFirst());
+                            return List.of(inputGrad);
+                        };
+                    }
                     return this;
                 }
 
@@ -155,18 +328,20 @@ public class Operation {
 
             public class Pair<O0T extends Array<?, ?>, O1T extends Array<?, ?>> {
 
-                public Pair<O0T, O1T> operation(Functions.Function2<MemorySegment, MemorySegment, Integer> function) {
+                public Pair<O0T, O1T> operation(ToIntBiFunction<MemorySegment, MemorySegment> function) {
                     operation.apply = (outputs) -> af.handleStatus(
-                        () -> function.apply(outputs.getFirst().segment(), outputs.get(1).segment()));
+                        () -> function.applyAsInt(outputs.getFirst().segment(), outputs.get(1).segment()));
                     return this;
                 }
 
                 @SuppressWarnings("unchecked")
                 public Pair<O0T, O1T> grads(GradFunction.UnaryPair<O0T, O1T, IT> unaryGradFunction) {
-                    operation.grads = (grads) -> {
-                        var inputGrad = unaryGradFunction.grads(new ArrayPair<>((O0T) operation.outputs.getFirst(), (O1T) operation.outputs.get(1)), new ArrayPair<>((O0T) grads.getFirst(), (O1T) grads.get(1)));
-                        return List.of(inputGrad);
-                    };
+                    if (recording) {
+                        operation.grads = (grads) -> {
+                            var inputGrad = unaryGradFunction.grads(new ArrayPair<>((O0T) operation.outputs.getFirst(), (O1T) operation.outputs.get(1)), new ArrayPair<>((O0T) grads.getFirst(), (O1T) grads.get(1)));
+                            return List.of(inputGrad);
+                        };
+                    }
                     return this;
                 }
 
@@ -180,9 +355,9 @@ public class Operation {
             public class Trio<O0T extends Array<?, ?>, O1T extends Array<?, ?>, O2T extends Array<?, ?>> {
 
                 public Trio<O0T, O1T, O2T> operation(
-                    Functions.Function3<MemorySegment, MemorySegment, MemorySegment, Integer> function) {
+                    Functions.ToIntFunction3<MemorySegment, MemorySegment, MemorySegment> function) {
                     operation.apply = (outputs) -> af.handleStatus(
-                        () -> function.apply(outputs.getFirst().segment(), outputs.get(1).segment(),
+                        () -> function.applyAsInt(outputs.getFirst().segment(), outputs.get(1).segment(),
                             outputs.get(2).segment()));
                     return this;
                 }
@@ -200,23 +375,74 @@ public class Operation {
 
             public <OT extends DataType<?>, OS extends Shape<?, ?, ?, ?>> Single<Array<OT, OS>> outputs(
                 Prototype<OT, OS> prototype) {
-                operation.outputs.add(new Array<>(prototype));
+                output(prototype);
                 return new Single<>();
             }
 
             public class Single<OT extends Array<?, ?>> {
 
-                public Single<OT> operation(Function<MemorySegment, Integer> function) {
-                    operation.apply = (outputs) -> af.handleStatus(() -> function.apply(outputs.getFirst().segment()));
+                public Single<OT> operation(ToIntFunction<MemorySegment> function) {
+                    operation.apply = (outputs) -> af.handleStatus(function, outputs.getFirst().segment());
                     return this;
                 }
 
                 @SuppressWarnings("unchecked")
                 public Single<OT> grads(GradFunction.Binary<OT, I0T, I1T> binaryGradFunction) {
-                    operation.grads = (grads) -> {
-                        var inputGrad = binaryGradFunction.grads((OT) operation.outputs.getFirst(), (OT) grads.getFirst());
-                        return List.of(inputGrad.left(), inputGrad.right());
-                    };
+                    if (recording) {
+                        operation.grads = (grads) -> {
+                            var inputGrad = binaryGradFunction.grads((OT) operation.outputs.getFirst(), (OT) grads.getFirst());
+                            return List.of(inputGrad.left(), inputGrad.right());
+                        };
+                    }
+                    return this;
+                }
+
+                @SuppressWarnings("unchecked")
+                public OT build() {
+                    af.scope().register(operation);
+                    return (OT) operation.outputs.getFirst();
+                }
+            }
+        }
+
+        public class Nary {
+
+            public None outputs() {
+                return new None();
+            }
+
+            public class None {
+
+                public None operation(Runnable function) {
+                    operation.apply = (outputs) -> function.run();
+                    return this;
+                }
+
+                public Operation build() {
+                    af.scope().register(operation);
+                    return operation;
+                }
+            }
+
+            public <OT extends DataType<?>, OS extends Shape<?, ?, ?, ?>> Single<Array<OT, OS>> outputs(
+                Prototype<OT, OS> prototype) {
+                output(prototype);
+                return new Single<>();
+            }
+
+            public class Single<OT extends Array<?, ?>> {
+
+                public Single<OT> operation(ToIntFunction<MemorySegment> function) {
+                    operation.apply = (outputs) -> af.handleStatus(function, outputs.getFirst().segment());
+                    return this;
+                }
+
+                @SuppressWarnings("unchecked")
+                public Single<OT> grads(GradFunction.Nary<OT> naryGradFunction) {
+                    if (recording) {
+                        operation.grads = (GradFunction.Selective) (grads, required) -> naryGradFunction.grads(
+                            (OT) operation.outputs.getFirst(), (OT) grads.getFirst(), required);
+                    }
                     return this;
                 }
 
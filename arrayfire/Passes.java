@@ -0,0 +1,84 @@
+package arrayfire;
+
+import arrayfire.utils.IdentityHashSet;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Rewrites over a list of recorded but not yet executed operations, in registration order.
+ */
+@SuppressWarnings("rawtypes")
+public class Passes {
+
+    private record Key(String name, List<Object> attributes, List<Array> inputs, List<Prototype<?, ?>> outputs) {
+    }
+
+    /**
+     * Aliases every pure operation that repeats an earlier pure operation on the same inputs, so its outputs are shared
+     * instead of computed again. Operations reading a {@link Variable} are skipped, since its value can change between
+     * them. Returns the number of operations aliased.
+     */
+    public static int eliminateCommonSubexpressions(List<Operation> operations) {
+        var canonicalOperations = new HashMap<Key, Operation>();
+        // Maps the outputs of aliased operations to the outputs they share, so chains of duplicates are found too.
+        var canonicalArrays = new IdentityHashMap<Array, Array>();
+        var eliminated = 0;
+        for (var operation : operations) {
+            if (operation.attributes() == null || operation.aliasOf() != null || operation.executed() ||
+                    operation.inputs().stream().anyMatch(input -> input instanceof Variable)) {
+                continue;
+            }
+            var inputs = operation.inputs().stream().map(input -> canonicalArrays.getOrDefault(input, input)).toList();
+            var outputs = operation.outputs().stream().<Prototype<?, ?>>map(Array::prototype).toList();
+            var key = new Key(operation.name(), operation.attributes(), inputs, outputs);
+            var canonical = canonicalOperations.putIfAbsent(key, operation);
+            if (canonical != null) {
+                operation.alias(canonical);
+                for (int i = 0; i < operation.outputs().size(); i++) {
+                    canonicalArrays.put(operation.outputs().get(i), canonical.outputs().get(i));
+                }
+                eliminated++;
+            }
+        }
+        return eliminated;
+    }
+
+    /**
+     * Returns the operations that contribute to a root array, or that have side effects (no outputs), in their original
+     * order. Every other operation computes values that can never be read.
+     */
+    public static List<Operation> eliminateDeadCode(List<Operation> operations, Predicate<Array> isRoot) {
+        var live = IdentityHashSet.<Operation>create();
+        var needed = IdentityHashSet.<Array>create();
+        for (int i = operations.size() - 1; i >= 0; i--) {
+            var operation = operations.get(i);
+            if (operation.outputs().isEmpty() || operation.outputs().stream().anyMatch(isRoot) ||
+                    operation.outputs().stream().anyMatch(needed::contains) || live.contains(operation)) {
+                live.add(operation);
+                needed.addAll(operation.inputs());
+                if (operation.aliasOf() != null) {
+                    live.add(operation.aliasOf());
+                }
+            }
+        }
+        return operations.stream().filter(live::contains).toList();
+    }
+
+    /**
+     * Returns the pure operations that only depend on other constant operations, e.g. {@link ArrayFire#constant} and
+     * arithmetic on constants, whose values never change once computed.
+     */
+    public static Set<Operation> constants(List<Operation> operations) {
+        var constants = IdentityHashSet.<Operation>create();
+        var constantArrays = IdentityHashSet.<Array>create();
+        for (var operation : operations) {
+            if (operation.attributes() != null && !operation.outputs().isEmpty() &&
+                    constantArrays.containsAll(operation.inputs())) {
+                constants.add(operation);
+                constantArrays.addAll(operation.outputs());
+            }
+        }
+        return constants;
+    }
+}
@@ -0,0 +1,167 @@
+package arrayfire;
+
+import arrayfire.capi.arrayfire_h;
+import arrayfire.utils.IdentityHashSet;
+
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * A fixed sequence of operations traced once from a function of placeholder arrays, which can be replayed against new
+ * inputs without rebuilding any operations. The traced operations include any gradient and optimizer operations the
+ * function created, e.g. through {@link ArrayFire#optimize}.
+ * <p>
+ * The traced function must only be built from array operations: any Java control flow is fixed at trace time, and
+ * nothing is executed while tracing, so reading the values of a traced array, e.g. through {@link ArrayFire#data} or
+ * {@link ArrayFire#eval}, throws an {@link IllegalStateException}. The result returned by a replay is owned by the
+ * plan and is only valid until the next replay or until the plan is disposed.
+ */
+@SuppressWarnings("rawtypes")
+public class Plan<R extends Array<?, ?>> implements MemoryContainer {
+
+    private final List<Array> placeholders;
+    private final Scope scope;
+    private final List<Operation> operations;
+    private final Set<Operation> constants;
+    private final MemoryPlan memory;
+    private final R result;
+    private boolean replayed = false;
+
+    Plan(List<Array> placeholders, Supplier<R> fn) {
+        this.placeholders = placeholders;
+        this.scope = new Scope(Scope.current(), Scope.Options.inherit(Scope.current()).withTrace(new Tape()));
+        R traced;
+        try {
+            traced = ScopedValue.getWhere(Scope.boundScope, scope, fn);
+        } catch (RuntimeException e) {
+            scope.dispose();
+            throw e;
+        }
+        this.result = traced;
+        // Includes the operations of any nested scopes, which have already been disposed of without executing.
+        var recorded = scope.trace().operations();
+        Passes.eliminateCommonSubexpressions(recorded);
+        this.operations = Passes.eliminateDeadCode(recorded, array -> array == traced);
+        // Constants are computed on the first replay and kept for all later ones.
+        this.constants = Passes.constants(operations);
+        // Intermediates are released as soon as they have been read, constants and variables live as long as the plan.
+        var constantArrays = IdentityHashSet.<Array>create();
+        constants.forEach(constant -> constantArrays.addAll(constant.outputs()));
+        this.memory = MemoryPlan.create(operations,
+            array -> array == traced || array instanceof Variable || constantArrays.contains(array));
+    }
+
+    @SuppressWarnings("unchecked")
+    R replay(Array<?, ?>... inputs) {
+        if (inputs.length != placeholders.size()) {
+            throw new IllegalArgumentException(
+                String.format("Expected %d inputs but got %d", placeholders.size(), inputs.length));
+        }
+        for (int i = 0; i < inputs.length; i++) {
+            var placeholder = placeholders.get(i);
+            var input = inputs[i];
+            if (!Arrays.equals(placeholder.shape().dims(), input.shape().dims()) ||
+                    placeholder.type().code() != input.type().code()) {
+                throw new IllegalArgumentException(
+                    String.format("Input %d %s does not match the traced input %s", i, input, placeholder));
+            }
+        }
+        for (int i = 0; i < inputs.length; i++) {
+            var placeholder = placeholders.get(i);
+            var input = inputs[i];
+            // Placeholders hold their own reference to the caller's buffer, so the caller's array is never spilled by
+            // an operation recovering from running out of memory while the replay still reads it, see Spill.
+            releaseOutput(placeholder);
+            ArrayFire.handleStatus(() -> arrayfire_h.af_retain_array(placeholder.segment(), input.dereference()));
+        }
+        try {
+            for (var operation : operations) {
+                if (replayed && constants.contains(operation)) {
+                    continue;
+                }
+                releaseOutputs(operation);
+                operation.reset();
+            }
+            for (int i = 0; i < operations.size(); i++) {
+                operations.get(i).apply();
+                memory.releasesAfter(i).forEach(Plan::releaseOutput);
+            }
+        } finally {
+            // A traced function that returns its input keeps the reference until the next replay.
+            for (var placeholder : placeholders) {
+                if (placeholder != result) {
+                    releaseOutput(placeholder);
+                }
+            }
+        }
+        replayed = true;
+        return result;
+    }
+
+    private static void releaseOutputs(Operation operation) {
+        operation.outputs().forEach(Plan::releaseOutput);
+    }
+
+    private static void releaseOutput(Array output) {
+        if (output.materialized()) {
+            ArrayFire.handleStatus(() -> arrayfire_h.af_release_array(output.dereference()));
+            output.segment().set(Array.LAYOUT, 0L, MemorySegment.NULL);
+            Scope.released(output);
+        }
+    }
+
+    /**
+     * Returns the number of operations in the plan, after duplicate and unused operations have been removed.
+     */
+    public int size() {
+        return operations.size();
+    }
+
+    /**
+     * Returns the number of operations that only depend on constants, which are only executed on the first replay.
+     */
+    public int constants() {
+        return constants.size();
+    }
+
+    /**
+     * Returns the memory plan used to release intermediates during a replay, which reports the planned peak memory of
+     * a replay against keeping every intermediate until the replay finishes.
+     */
+    public MemoryPlan memory() {
+        return memory;
+    }
+
+    @Override
+    public void dispose() {
+        // Outputs of nested scopes are no longer tracked by any scope, so release everything we produced directly.
+        operations.forEach(Plan::releaseOutputs);
+        placeholders.forEach(Plan::releaseOutput);
+        scope.dispose();
+    }
+
+    public static class Unary<A extends Array<?, ?>, R extends Array<?, ?>> extends Plan<R> {
+
+        Unary(List<Array> placeholders, Supplier<R> fn) {
+            super(placeholders, fn);
+        }
+
+        public R apply(A input) {
+            return replay(input);
+        }
+    }
+
+    public static class Binary<A extends Array<?, ?>, B extends Array<?, ?>, R extends Array<?, ?>> extends Plan<R> {
+
+        Binary(List<Array> placeholders, Supplier<R> fn) {
+            super(placeholders, fn);
+        }
+
+        public R apply(A left, B right) {
+            return replay(left, right);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package arrayfire;
+
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A memory manager that rounds every request up to a size class and keeps released buffers in a pool per device and
+ * size class for reuse. Workloads that repeat the same shapes, e.g. training with a fixed batch size, are served
+ * entirely from the pool after the first step, so a fine granularity wastes little memory.
+ * <p>
+ * Pooled buffers are only freed when ArrayFire signals a cleanup, e.g. from {@link ArrayFire#deviceGc()}, or runs out
+ * of memory, in which case the allocation is retried once the pool has been freed. Shutting the manager down frees
+ * every buffer it allocated, including those still in use, so it must only be uninstalled once the arrays allocated
+ * through it have been released.
+ */
+public class PoolingMemoryManager implements MemoryManager {
+
+    private static final long DEFAULT_GRANULARITY = 1024;
+    private static final float DEFAULT_PRESSURE_THRESHOLD = 0.9f;
+
+    private static class Block {
+        private final MemorySegment pointer;
+        private final int deviceId;
+        private final long bytes;
+        private final long requestedBytes;
+        private boolean locked;
+        private boolean userLocked;
+
+        private Block(MemorySegment pointer, int deviceId, long bytes, long requestedBytes, boolean userLocked) {
+            this.pointer = pointer;
+            this.deviceId = deviceId;
+            this.bytes = bytes;
+            this.requestedBytes = requestedBytes;
+            // ArrayFire never takes its own lock on buffers the user allocates locked, e.g. through af_alloc_device,
+            // so it never unlocks them either.
+            this.locked = !userLocked;
+            this.userLocked = userLocked;
+        }
+    }
+
+    private final long granularity;
+    private final float pressureThreshold;
+    private Device device;
+    // Buffers in use by address.
+    private final Map<Long, Block> blocks = new HashMap<>();
+    // Released buffers by device and size class.
+    private final Map<Integer, Map<Long, ArrayDeque<MemorySegment>>> pools = new HashMap<>();
+    private final Map<Long, Long> missesBySize = new TreeMap<>();
+    private long allocations;
+    private long frees;
+    private long forcedFrees;
+    private long cacheHits;
+    private long cacheMisses;
+    private long liveBytes;
+    private long requestedBytes;
+    private long cachedBytes;
+    private long peakBytes;
+
+    public PoolingMemoryManager() {
+        this(DEFAULT_GRANULARITY, DEFAULT_PRESSURE_THRESHOLD);
+    }
+
+    /**
+     * @param granularity       the size classes are multiples of this many bytes.
+     * @param pressureThreshold the memory pressure at which JIT trees are evaluated early.
+     */
+    public PoolingMemoryManager(long granularity, float pressureThreshold) {
+        if (granularity <= 0) {
+            throw new IllegalArgumentException(String.format("Granularity must be positive but was %d", granularity));
+        }
+        this.granularity = granularity;
+        this.pressureThreshold = pressureThreshold;
+    }
+
+    @Override
+    public synchronized void initialize(Device device) {
+        this.device = device;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        pools.keySet().forEach(this::freePool);
+        pools.clear();
+        // ArrayFire can't hand these back once the manager is gone, so they would leak.
+        blocks.values().forEach(block -> device.free(block.pointer));
+        forcedFrees += blocks.size();
+        blocks.clear();
+        liveBytes = 0;
+        requestedBytes = 0;
+        device = null;
+    }
+
+    @Override
+    public synchronized MemorySegment allocate(long bytes, boolean userLock) {
+        var size = sizeClass(bytes);
+        var deviceId = device.activeDeviceId();
+        var pool = pools.computeIfAbsent(deviceId, id -> new HashMap<>()).get(size);
+        MemorySegment pointer;
+        allocations++;
+        if (pool != null && !pool.isEmpty()) {
+            pointer = pool.pop();
+            cachedBytes -= size;
+            cacheHits++;
+        } else {
+            cacheMisses++;
+            missesBySize.merge(size, 1L, Long::sum);
+            pointer = allocateNative(deviceId, size);
+        }
+        blocks.put(pointer.address(), new Block(pointer, deviceId, size, bytes, userLock));
+        liveBytes += size;
+        requestedBytes += bytes;
+        peakBytes = Math.max(peakBytes, liveBytes + cachedBytes);
+        return pointer;
+    }
+
+    private MemorySegment allocateNative(int deviceId, long size) {
+        try {
+            return device.allocate(size);
+        } catch (ArrayFireException e) {
+            if (e.status() != Status.AF_ERR_NO_MEM) {
+                throw e;
+            }
+            // Free what we're holding on to before giving up.
+            freePool(deviceId);
+            return device.allocate(size);
+        }
+    }
+
+    @Override
+    public synchronized long allocated(MemorySegment pointer) {
+        var block = blocks.get(pointer.address());
+        return block == null ? 0 : block.bytes;
+    }
+
+    @Override
+    public synchronized void unlock(MemorySegment pointer, boolean userUnlock) {
+        var block = blocks.get(pointer.address());
+        if (block == null) {
+            return;
+        }
+        if (userUnlock) {
+            block.userLocked = false;
+        } else {
+            block.locked = false;
+        }
+        maybeRelease(block);
+    }
+
+    @Override
+    public synchronized void userLock(MemorySegment pointer) {
+        var block = blocks.get(pointer.address());
+        if (block != null) {
+            block.userLocked = true;
+        }
+    }
+
+    @Override
+    public synchronized void userUnlock(MemorySegment pointer) {
+        unlock(pointer, true);
+    }
+
+    @Override
+    public synchronized boolean isUserLocked(MemorySegment pointer) {
+        var block = blocks.get(pointer.address());
+        return block != null && block.userLocked;
+    }
+
+    private void maybeRelease(Block block) {
+        if (block.locked || block.userLocked) {
+            return;
+        }
+        blocks.remove(block.pointer.address());
+        liveBytes -= block.bytes;
+        requestedBytes -= block.requestedBytes;
+        cachedBytes += block.bytes;
+        frees++;
+        pools.computeIfAbsent(block.deviceId, id -> new HashMap<>())
+             .computeIfAbsent(block.bytes, size -> new ArrayDeque<>())
+             .push(block.pointer);
+    }
+
+    @Override
+    public synchronized void signalMemoryCleanup() {
+        freePool(device.activeDeviceId());
+    }
+
+    private void freePool(int deviceId) {
+        var pool = pools.get(deviceId);
+        if (pool == null || device == null) {
+            return;
+        }
+        pool.forEach((size, pointers) -> {
+            cachedBytes -= size * pointers.size();
+            pointers.forEach(device::free);
+        });
+        pool.clear();
+    }
+
+    @Override
+    public synchronized float memoryPressure() {
+        var maxBytes = device.maxMemoryBytes(device.activeDeviceId());
+        return maxBytes == 0 ? 0 : (float) liveBytes / maxBytes;
+    }
+
+    @Override
+    public synchronized boolean jitTreeExceedsMemoryPressure(long bytes) {
+        var maxBytes = device.maxMemoryBytes(device.activeDeviceId());
+        return maxBytes != 0 && (float) (liveBytes + bytes) / maxBytes >= pressureThreshold;
+    }
+
+    @Override
+    public synchronized void removeMemoryManagement(int deviceId) {
+        freePool(deviceId);
+    }
+
+    public synchronized MemoryStats stats() {
+        return new MemoryStats(allocations, frees, forcedFrees, cacheHits, cacheMisses, liveBytes, requestedBytes,
+            cachedBytes, peakBytes, Collections.unmodifiableMap(new TreeMap<>(missesBySize)));
+    }
+
+    @Override
+    public String info() {
+        return stats().toString();
+    }
+
+    private long sizeClass(long bytes) {
+        return Math.max(1, (bytes + granularity - 1) / granularity) * granularity;
+    }
+}
@@ -5,85 +5,603 @@ import arrayfire.utils.IdentityHashSet;
 import java.util.*;
 import java.util.stream.Collectors;
 
+/**
+ * Owns the memory containers created while it is the current scope, and disposes of them when it is disposed.
+ * <p>
+ * There is no global registry: each scope keeps the containers it owns. Each array records its owner, while the owner
+ * of any other container is found by walking the current thread's scope chain. A scope, and the containers it owns,
+ * must only be used by one thread at a time, but independent scopes can be used concurrently from different threads
+ * without any locking.
+ */
 public class Scope {
+    // The current scope, bound for the extent of each tidy and inherited by subtasks forked inside it, see
+    // ArrayFire#tidyAll.
+    static final ScopedValue<Scope> boundScope = ScopedValue.newInstance();
+    // The root scope of a thread, used when no scope is bound.
     static final ThreadLocal<Scope> threadScope = ThreadLocal.withInitial(() -> null);
-    private static final IdentityHashMap<MemoryContainer, Scope> containerScopes = new IdentityHashMap<>();
-    private static final IdentityHashMap<Scope, Set<MemoryContainer>> scopeContainers = new IdentityHashMap<>();
-    private final List<Operation> operations = new ArrayList<>();
+    // The scopes created on each thread that currently own containers, only used to report what is still tracked.
+    private static final ThreadLocal<Set<Scope>> threadScopes = ThreadLocal.withInitial(IdentityHashSet::create);
+    private final Set<MemoryContainer> containers = IdentityHashSet.create();
+    private final Set<Scope> registry = threadScopes.get();
+    private final Tape tape = new Tape();
+    private final List<Operation> pending = new ArrayList<>();
+    private final Scope parent;
+    private final boolean lazy;
+    private final Tape trace;
+    private final boolean inference;
+    // No budget if Long.MAX_VALUE, see #tidy(Runnable, long).
+    private final long budget;
+    // Non-null if operations are submitted through this channel to a dispatch thread, and applied on the given device,
+    // see #async(Runnable).
+    private final Dispatcher.Channel channel;
+    private final int device;
+    // Null if JIT trees are only evaluated when needed, see #tidy(Runnable, EvalPolicy).
+    private final EvalPolicy evalPolicy;
+    // Unevaluated outputs of element-wise operations, the candidates for the next batch of evaluations.
+    private final List<Array<?, ?>> jitArrays = new ArrayList<>();
+    private int jitArraysPruneSize = 64;
+    private boolean flushing = false;
+    // Device bytes of the arrays this scope owns, and of those owned by this scope and its nested scopes. Nested scopes
+    // may run on other threads, see ArrayFire#tidyAll, so these are only accessed while holding this scope's lock.
+    private long liveBytes = 0;
+    private long peakBytes = 0;
+    private long nestedLiveBytes = 0;
+    private long nestedPeakBytes = 0;
+
+    /**
+     * How a scope applies the operations registered in it. Nested scopes inherit the options of the current scope,
+     * except for its budget, see {@link #inherit(Scope)}.
+     *
+     * @param lazy       if true, operations are only recorded, and are executed when a value is needed or when the
+     *                   scope exits.
+     * @param trace      if non-null, every operation registered in the scope and its children is also recorded here,
+     *                   and nothing is executed.
+     * @param inference  if true, and the scope isn't being traced, operations are executed straight away and nothing
+     *                   needed to compute gradients is recorded, see {@link ArrayFire#inference(Runnable)}.
+     * @param budget     the most device bytes that the scope and its nested scopes may hold at once, or
+     *                   Long.MAX_VALUE for no budget, see {@link #tidy(Runnable, long)}.
+     * @param channel    if non-null, and the scope isn't being traced, operations are submitted through it to be
+     *                   applied on its dispatcher's thread, see {@link #async(Runnable)}.
+     * @param device     the device the dispatcher applies operations on.
+     * @param evalPolicy if non-null, and the scope isn't lazy, JIT trees are evaluated in batches once they exceed its
+     *                   limits, see {@link #tidy(Runnable, EvalPolicy)}.
+     */
+    record Options(boolean lazy, Tape trace, boolean inference, long budget, Dispatcher.Channel channel, int device,
+                   EvalPolicy evalPolicy) {
+
+        static final Options DEFAULT = new Options(false, null, false, Long.MAX_VALUE, null, -1, null);
+
+        /**
+         * Returns the options of a scope nested in the given one, or the defaults if there is none.
+         */
+        static Options inherit(Scope parent) {
+            return parent == null ? DEFAULT : new Options(parent.lazy, parent.trace, parent.inference, Long.MAX_VALUE,
+                parent.channel, parent.device, parent.evalPolicy);
+        }
+
+        Options withLazy(boolean lazy) {
+            return new Options(lazy, trace, inference, budget, channel, device, evalPolicy);
+        }
+
+        Options withTrace(Tape trace) {
+            return new Options(lazy, trace, inference, budget, channel, device, evalPolicy);
+        }
+
+        Options withInference(boolean inference) {
+            return new Options(lazy, trace, inference, budget, channel, device, evalPolicy);
+        }
+
+        Options withBudget(long budget) {
+            return new Options(lazy, trace, inference, budget, channel, device, evalPolicy);
+        }
+
+        Options withChannel(Dispatcher.Channel channel, int device) {
+            return new Options(lazy, trace, inference, budget, channel, device, evalPolicy);
+        }
+
+        Options withEvalPolicy(EvalPolicy evalPolicy) {
+            return new Options(lazy, trace, inference, budget, channel, device, evalPolicy);
+        }
+    }
+
+    public Scope() {
+        this(null, Options.DEFAULT);
+    }
+
+    Scope(Scope parent, Options options) {
+        this.parent = parent;
+        this.trace = options.trace();
+        // Plans never execute anything.
+        this.channel = trace == null ? options.channel() : null;
+        this.device = options.device();
+        this.evalPolicy = options.evalPolicy();
+        this.budget = options.budget();
+        // Plans need the full graph, so tracing takes precedence over inference.
+        this.inference = options.inference() && trace == null;
+        // Lazy execution relies on the recorded inputs of each operation, which inference scopes don't keep.
+        this.lazy = (options.lazy() || trace != null) && !this.inference;
+    }
 
     public static Scope current() {
-        return threadScope.get();
+        return boundScope.isBound() ? boundScope.get() : threadScope.get();
     }
 
+    /**
+     * Runs the given function in a new scope, inheriting the execution mode of the current scope.
+     */
     public static void tidy(Runnable fn) {
+        tidy(fn, Options.inherit(current()));
+    }
+
+    /**
+     * Runs the given function in a new scope. If lazy, operations are only recorded and are executed when a value is
+     * needed, or when the scope exits.
+     */
+    public static void tidy(Runnable fn, boolean lazy) {
+        tidy(fn, Options.inherit(current()).withLazy(lazy));
+    }
+
+    /**
+     * Runs the given function in a new scope, inheriting the execution mode of the current scope, which may hold at
+     * most the given number of device bytes across itself and its nested scopes. Producing an array that exceeds the
+     * budget first spills idle arrays of the scope to host memory, least recently used first, then throws a
+     * {@link MemoryBudgetException} if that isn't enough.
+     */
+    public static void tidy(Runnable fn, long budget) {
+        tidy(fn, Options.inherit(current()).withBudget(budget));
+    }
+
+    /**
+     * Runs the given function in a new scope, inheriting the execution mode of the current scope, which evaluates the
+     * JIT trees of element-wise operations in batches once they exceed the limits of the given policy. The policy is
+     * inherited by nested scopes. Lazy scopes ignore the policy: their operations are applied together when a value is
+     * needed, and evaluating trees while recording would force arrays that dead code elimination could drop.
+     */
+    public static void tidy(Runnable fn, EvalPolicy evalPolicy) {
+        tidy(fn, Options.inherit(current()).withEvalPolicy(evalPolicy));
+    }
+
+    /**
+     * Runs the given function in a new inference scope, where operations are executed straight away and are not
+     * recorded for gradients.
+     */
+    public static void inference(Runnable fn) {
+        tidy(fn, Options.inherit(current()).withLazy(false).withInference(true));
+    }
+
+    /**
+     * Runs the given function in a new scope, inheriting the execution mode of the current scope, where operations are
+     * applied in order on a dedicated dispatch thread. The calling thread carries on building the graph and only waits
+     * for the dispatch thread when it needs a value that hasn't been produced yet, e.g. through
+     * {@link Array#dereference()}, {@link ArrayFire#data}, {@link ArrayFire#sync()} or {@link ArrayFire#eval}, when
+     * it releases an array or spills arrays to host memory, and before the scope exits. A failure on the dispatch
+     * thread is rethrown by the next wait in the scope that submitted the operation, and waits only cover the
+     * operations that scope submitted.
+     * <p>
+     * Operations that manage the containers of the calling thread's scopes are applied on the calling thread once the
+     * dispatch thread has caught up, see {@link Operation.Builder#confined()}.
+     */
+    public static void async(Runnable fn) {
         var previousScope = current();
-        var scope = new Scope();
-        try {
-            threadScope.set(scope);
-            fn.run();
-        } finally {
-            scope.dispose();
-            threadScope.set(previousScope);
+        // Pending operations of enclosing scopes must not be applied from both threads.
+        if (previousScope != null) {
+            previousScope.flushAll();
         }
+        tidy(fn, Options.inherit(previousScope).withLazy(false).withChannel(Dispatcher.instance().channel(),
+            af.deviceId()));
+    }
+
+    private static void tidy(Runnable fn, Options options) {
+        tidy(fn, new Scope(current(), options));
+    }
+
+    private static void tidy(Runnable fn, Scope scope) {
+        ScopedValue.runWhere(boundScope, scope, () -> {
+            try {
+                fn.run();
+                scope.flush(true);
+            } finally {
+                // Queued operations may still use the arrays about to be released.
+                try {
+                    scope.drain();
+                } finally {
+                    scope.dispose();
+                }
+            }
+        });
     }
 
     /**
-     * Permanently removes this memory container from the tracking system
+     * Permanently removes this memory container from the tracking system. If auto release is enabled, an untracked
+     * array is released once it becomes unreachable, see {@link ArrayFire#setAutoRelease}.
      */
     public static void untrack(MemoryContainer mc) {
-        scopeContainers.get(containerScopes.get(mc)).remove(mc);
-        containerScopes.remove(mc);
+        detach(mc);
+        if (mc instanceof Array<?, ?> array) {
+            AutoRelease.register(array);
+        }
+    }
+
+    /**
+     * Removes the container from its scope without handing it to auto release, for containers that are being
+     * released, moved, or whose handle has been copied into another container.
+     */
+    static void detach(MemoryContainer mc) {
+        var scope = scopeOf(mc);
+        if (scope != null) {
+            scope.remove(mc);
+        }
     }
 
+    /**
+     * Returns the scope owning the given container. Arrays know their owner, wherever it is; for other containers, only
+     * the current scope and its parents are searched.
+     */
     public static Scope scopeOf(MemoryContainer memoryContainer) {
-        return containerScopes.get(memoryContainer);
+        if (memoryContainer instanceof Array<?, ?> array) {
+            return array.owner();
+        }
+        for (var scope = current(); scope != null; scope = scope.parent) {
+            if (scope.containers.contains(memoryContainer)) {
+                return scope;
+            }
+        }
+        return null;
     }
 
     public static void move(MemoryContainer memoryContainer, Scope scope) {
-        scopeContainers.get(containerScopes.get(memoryContainer)).remove(memoryContainer);
-        containerScopes.put(memoryContainer, scope);
-        scopeContainers.computeIfAbsent(scope, k -> IdentityHashSet.create()).add(memoryContainer);
+        detach(memoryContainer);
+        scope.register(memoryContainer);
     }
 
+    /**
+     * Returns the containers owned by scopes created on the current thread.
+     */
     public static Set<MemoryContainer> trackedContainers() {
-        return containerScopes.keySet();
+        var containers = IdentityHashSet.<MemoryContainer>create();
+        threadScopes.get().forEach(scope -> containers.addAll(scope.containers));
+        return containers;
     }
 
+    /**
+     * Returns the scopes created on the current thread that own containers.
+     */
     public static Set<Scope> trackedScopes() {
-        return scopeContainers.keySet();
+        return Collections.unmodifiableSet(threadScopes.get());
     }
 
     public static List<Array<?, ?>> trackedArrays() {
-        return containerScopes
-                   .keySet()
+        return trackedContainers()
                    .stream()
                    .filter(mc -> mc instanceof Array)
                    .map(mc -> (Array<?, ?>) mc)
                    .collect(Collectors.toList());
     }
 
+    /**
+     * Returns true if this scope owns the given container.
+     */
+    public boolean owns(MemoryContainer memoryContainer) {
+        return containers.contains(memoryContainer);
+    }
+
     public void dispose() {
         // Copy first to avoid concurrent modification exceptions.
-        List.copyOf(scopeContainers.getOrDefault(this, Set.of())).forEach(mc -> {
-            mc.dispose();
-            containerScopes.remove(mc);
-        });
-        scopeContainers.remove(this);
+        for (var container : List.copyOf(containers)) {
+            container.dispose();
+            // Arrays that were never executed keep their cell when released, but dead ones can't be read again. Traced
+            // arrays are replayed by their plan after this scope is gone, so they keep theirs.
+            if (container instanceof Array<?, ?> array) {
+                if (array.owner() == this) {
+                    array.owner(null);
+                }
+                if (trace == null) {
+                    array.recycle();
+                }
+            }
+        }
+        containers.clear();
+        registry.remove(this);
+        // Containers released from outside the current scope chain, e.g. by a plan, are never removed one by one.
+        account(-liveBytes());
     }
 
     public void register(MemoryContainer memoryContainer) {
-        containerScopes.put(memoryContainer, this);
-        scopeContainers.computeIfAbsent(this, k -> IdentityHashSet.create()).add(memoryContainer);
+        if (containers.isEmpty()) {
+            registry.add(this);
+        }
+        containers.add(memoryContainer);
+        if (memoryContainer instanceof Array<?, ?> array) {
+            array.owner(this);
+            // Outputs of operations that haven't been applied yet are only counted once they are, see #materialized.
+            array.accounted(array.materialized());
+            if (array.accounted() && array.spilled() == null) {
+                account(array.bytes());
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes of an array that was just produced towards its owner, if they aren't already. Arrays are only
+     * counted once their values exist, so operations that are recorded lazily and never applied, e.g. because dead
+     * code elimination removed them, don't count.
+     */
+    static void materialized(Array<?, ?> array) {
+        var owner = array.owner();
+        if (owner != null && !array.accounted()) {
+            array.accounted(true);
+            if (array.spilled() == null) {
+                owner.account(array.bytes());
+            }
+        }
+    }
+
+    /**
+     * Stops counting the bytes of an array that was released by something other than its owner, e.g. by a plan.
+     */
+    static void released(Array<?, ?> array) {
+        var owner = array.owner();
+        if (owner != null && array.accounted()) {
+            array.accounted(false);
+            if (array.spilled() == null) {
+                owner.account(-array.bytes());
+            }
+        }
+    }
+
+    private void remove(MemoryContainer memoryContainer) {
+        containers.remove(memoryContainer);
+        if (containers.isEmpty()) {
+            registry.remove(this);
+        }
+        if (memoryContainer instanceof Array<?, ?> array && array.owner() == this) {
+            released(array);
+            array.owner(null);
+        }
+    }
+
+    /**
+     * Adds the given number of device bytes to this scope and its parents, enforcing the budget of any of them that
+     * it exceeds.
+     */
+    void account(long bytes) {
+        if (bytes == 0) {
+            return;
+        }
+        synchronized (this) {
+            liveBytes += bytes;
+            peakBytes = Math.max(peakBytes, liveBytes);
+        }
+        Scope exceeded = null;
+        for (var scope = this; scope != null; scope = scope.parent) {
+            synchronized (scope) {
+                scope.nestedLiveBytes += bytes;
+                scope.nestedPeakBytes = Math.max(scope.nestedPeakBytes, scope.nestedLiveBytes);
+                if (bytes > 0 && exceeded == null && scope.nestedLiveBytes > scope.budget) {
+                    exceeded = scope;
+                }
+            }
+        }
+        if (exceeded != null) {
+            exceeded.enforceBudget();
+        }
+    }
+
+    private void enforceBudget() {
+        // Only the calling thread knows which arrays it can spill, so the budget is enforced the next time it counts an
+        // array.
+        if (channel != null && channel.dispatcher().onDispatchThread()) {
+            return;
+        }
+        drain();
+        var nested = trackedArrays().stream().filter(array -> contains(array.owner())).toList();
+        if (!Spill.spillUntil(nested, () -> nestedLiveBytes() <= budget)) {
+            throw new MemoryBudgetException(String.format(
+                "Scope exceeded its memory budget of %d bytes with %d bytes live", budget, nestedLiveBytes()));
+        }
+    }
+
+    /**
+     * Returns true if the given scope is this scope or one nested within it.
+     */
+    private boolean contains(Scope scope) {
+        for (; scope != null; scope = scope.parent) {
+            if (scope == this) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the device bytes of the arrays this scope owns, not counting arrays spilled to host memory.
+     */
+    public synchronized long liveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * Returns the most device bytes the arrays owned by this scope ever held at once.
+     */
+    public synchronized long peakBytes() {
+        return peakBytes;
+    }
+
+    /**
+     * Returns the device bytes of the arrays owned by this scope and its nested scopes.
+     */
+    public synchronized long nestedLiveBytes() {
+        return nestedLiveBytes;
+    }
+
+    /**
+     * Returns the most device bytes the arrays owned by this scope and its nested scopes ever held at once.
+     */
+    public synchronized long nestedPeakBytes() {
+        return nestedPeakBytes;
+    }
+
+    /**
+     * Returns the most device bytes this scope and its nested scopes may hold, or Long.MAX_VALUE if unlimited.
+     */
+    public long budget() {
+        return budget;
     }
 
     public void register(Operation operation) {
-        // TODO: Only do this if eager execution is enabled.
         operation.outputs().forEach(this::register);
-        operation.apply();
-        operations.add(operation);
+        if (lazy) {
+            // Plans replay the operations they trace, so they are never applied, or kept for applying, here.
+            if (trace == null) {
+                pending.add(operation);
+            }
+        } else if (channel != null && !operation.confined() && !channel.dispatcher().onDispatchThread()) {
+            // Dispatched operations are always applied, so their outputs are counted here, where the budget can be
+            // enforced.
+            operation.outputs().forEach(Scope::materialized);
+            channel.dispatcher().submit(channel, operation, device);
+        } else {
+            drain();
+            operation.apply();
+        }
+        if (!inference) {
+            tape.record(operation);
+        }
+        if (trace != null) {
+            trace.record(operation);
+        }
+        // Lazy scopes only apply operations when a value is needed, and plans replay their own operations, so both
+        // keep the trees they were recorded with.
+        if (evalPolicy != null && !lazy) {
+            evalJitTrees(operation);
+        }
+    }
+
+    /**
+     * Evaluates the trees of this scope's unevaluated arrays that have grown large, once one of the given operation's
+     * outputs exceeds the limits of the eval policy.
+     */
+    private void evalJitTrees(Operation operation) {
+        var exceeded = false;
+        for (Array<?, ?> array : operation.outputs()) {
+            if (array.jitDepth() > 0) {
+                jitArrays.add(array);
+                exceeded |= evalPolicy.exceeds(array);
+            }
+        }
+        if (!exceeded) {
+            if (jitArrays.size() >= jitArraysPruneSize) {
+                jitArrays.removeIf(array -> array.jitDepth() == 0 || !owns(array));
+                jitArraysPruneSize = Math.max(64, 2 * jitArrays.size());
+            }
+            return;
+        }
+        var batch = new ArrayList<Array<?, ?>>();
+        var rest = new ArrayList<Array<?, ?>>();
+        for (var array : jitArrays) {
+            if (array.jitDepth() == 0 || !owns(array)) {
+                continue;
+            }
+            (evalPolicy.ripe(array) ? batch : rest).add(array);
+        }
+        jitArrays.clear();
+        jitArrays.addAll(rest);
+        ArrayFire.evalOperation(batch);
+    }
+
+    /**
+     * Applies all recorded but not yet executed operations in this scope, in the order they were registered.
+     */
+    public void flush() {
+        flush(false);
+    }
+
+    /**
+     * @param exiting whether the scope is about to be disposed, in which case operations whose outputs are all owned
+     *                by this scope and unused are never executed.
+     */
+    private void flush(boolean exiting) {
+        // Applying an operation may re-enter here (e.g. through a nested tidy), in which case the outer call finishes.
+        // Scopes that are being traced never execute, see Plan.
+        if (flushing || trace != null || pending.isEmpty()) {
+            return;
+        }
+        flushing = true;
+        try {
+            // Operations can be registered here while others are being applied, so keep going until none are left.
+            while (!pending.isEmpty()) {
+                var recorded = List.copyOf(pending);
+                pending.clear();
+                Passes.eliminateCommonSubexpressions(recorded);
+                var operations = exiting ? Passes.eliminateDeadCode(recorded, array -> !owns(array)) : recorded;
+                operations.forEach(Operation::apply);
+            }
+        } finally {
+            flushing = false;
+        }
+    }
+
+    /**
+     * Flushes this scope and all of its parents, oldest first, so that every operation recorded so far is executed.
+     */
+    public void flushAll() {
+        if (parent != null) {
+            parent.flushAll();
+        }
+        flush();
+        drain();
+    }
+
+    /**
+     * Waits until every operation this scope's async scope queued on its dispatch thread has been applied, see
+     * {@link #async(Runnable)}. Does nothing on the dispatch thread itself.
+     */
+    void drain() {
+        if (channel != null) {
+            channel.dispatcher().drain(channel);
+        }
+    }
+
+    public boolean lazy() {
+        return lazy;
+    }
+
+    public boolean inference() {
+        return inference;
+    }
+
+    /**
+     * Returns true if operations registered in this scope are applied on a dispatch thread, see
+     * {@link #async(Runnable)}.
+     */
+    public boolean async() {
+        return channel != null;
+    }
+
+    public Scope parent() {
+        return parent;
+    }
+
+    Tape trace() {
+        return trace;
+    }
+
+    /**
+     * Returns true if the current scope is tracing a plan, in which case no values can be read, see {@link Plan}.
+     */
+    static boolean tracing() {
+        var scope = current();
+        return scope != null && scope.trace != null;
     }
 
     public List<Operation> operations() {
-        return Collections.unmodifiableList(operations);
+        return tape.operations();
+    }
+
+    /**
+     * Returns the tape of operations registered in this scope, used for computing gradients.
+     */
+    public Tape tape() {
+        return tape;
     }
 }
@@ -0,0 +1,68 @@
+package arrayfire;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.util.Arrays;
+
+/**
+ * A per-thread bump allocator for the short-lived native arguments of a call, e.g. dims, index structs and
+ * out-parameters, so they don't need an arena per call. Allocations are only valid until the frame they were made in
+ * is closed, and are not zeroed.
+ * <p>
+ * Every {@link ArrayFire#handleStatus} call opens a frame around the downcall, so arguments allocated from
+ * {@link #current()} inside an operation live until its downcall returns. Opening and closing frames only moves an
+ * offset, so the native call path allocates nothing on the Java heap besides the segments handed out.
+ */
+final class Scratch implements SegmentAllocator, AutoCloseable {
+
+    private static final long BYTES = 16 * 1024;
+    private static final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    private final MemorySegment segment = Arena.ofAuto().allocate(BYTES, 16);
+    private long offset = 0;
+    private long[] frames = new long[16];
+    private int depth = 0;
+
+    private Scratch() {
+    }
+
+    /**
+     * Returns this thread's allocator without opening a frame, for arguments of a call that has already opened one.
+     */
+    static Scratch current() {
+        var current = scratch.get();
+        if (current.depth == 0) {
+            throw new IllegalStateException("No scratch frame is open on this thread, see Scratch#open");
+        }
+        return current;
+    }
+
+    /**
+     * Opens a frame on this thread's allocator, releasing everything allocated from it once closed.
+     */
+    static Scratch open() {
+        var current = scratch.get();
+        if (current.depth == current.frames.length) {
+            current.frames = Arrays.copyOf(current.frames, current.depth * 2);
+        }
+        current.frames[current.depth++] = current.offset;
+        return current;
+    }
+
+    @Override
+    public MemorySegment allocate(long byteSize, long byteAlignment) {
+        var start = (offset + byteAlignment - 1) & -byteAlignment;
+        if (start + byteSize > BYTES) {
+            // Too large for the scratch space, e.g. evaluating thousands of arrays at once.
+            return Arena.ofAuto().allocate(byteSize, byteAlignment);
+        }
+        offset = start + byteSize;
+        return segment.asSlice(start, byteSize);
+    }
+
+    @Override
+    public void close() {
+        offset = frames[--depth];
+    }
+}
@@ -11,11 +11,14 @@ public record Seq(double begin, double end, double step) {
       ValueLayout.JAVA_DOUBLE.withName("begin"),
       ValueLayout.JAVA_DOUBLE.withName("end"),
       ValueLayout.JAVA_DOUBLE.withName("step"));
+  private static final long BEGIN_OFFSET = LAYOUT.byteOffset(PathElement.groupElement("begin"));
+  private static final long END_OFFSET = LAYOUT.byteOffset(PathElement.groupElement("end"));
+  private static final long STEP_OFFSET = LAYOUT.byteOffset(PathElement.groupElement("step"));
 
   public void emigrate(MemorySegment segment) {
-    segment.set(ValueLayout.JAVA_DOUBLE, LAYOUT.byteOffset(PathElement.groupElement("begin")), begin());
-    segment.set(ValueLayout.JAVA_DOUBLE, LAYOUT.byteOffset(PathElement.groupElement("end")), end());
-    segment.set(ValueLayout.JAVA_DOUBLE, LAYOUT.byteOffset(PathElement.groupElement("step")), step());
+    segment.set(ValueLayout.JAVA_DOUBLE, BEGIN_OFFSET, begin());
+    segment.set(ValueLayout.JAVA_DOUBLE, END_OFFSET, end());
+    segment.set(ValueLayout.JAVA_DOUBLE, STEP_OFFSET, step());
   }
 
   public int size() {
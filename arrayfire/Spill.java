@@ -0,0 +1,179 @@
+package arrayfire;
+
+import arrayfire.capi.arrayfire_h;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recovers from running out of device memory while applying an operation. The operation is retried after a device
+ * garbage collection, and then after moving idle arrays to pinned host memory in least recently used order. Spilled
+ * arrays are copied back to the device the next time they are dereferenced.
+ * <p>
+ * Only arrays tracked by the scopes of the current thread are spilled, and only those that haven't been dereferenced
+ * since the outermost operation being applied on this thread started, since any of those may be held by a native call
+ * in progress. On the dispatch thread of an async scope, where no scopes track the arrays, only the device garbage
+ * collection is tried.
+ */
+class Spill {
+
+    // Advanced every time an outermost operation starts, and read by every dereference.
+    private static final AtomicLong clock = new AtomicLong();
+    private static final ThreadLocal<Frame> frames = ThreadLocal.withInitial(Frame::new);
+
+    static class Frame {
+        private int depth;
+        // Arrays dereferenced at or after this time may be in use.
+        private long floor;
+    }
+
+    static long now() {
+        return clock.get();
+    }
+
+    static Frame enter() {
+        var frame = frames.get();
+        if (frame.depth++ == 0) {
+            frame.floor = clock.incrementAndGet();
+        }
+        return frame;
+    }
+
+    static void exit(Frame frame) {
+        frame.depth--;
+    }
+
+    /**
+     * Retries the given function, which just failed with {@link Status#AF_ERR_NO_MEM}, freeing more device memory
+     * before each attempt. Throws if it still runs out of memory once every idle array has been spilled.
+     */
+    static void recover(Frame frame, Runnable fn) {
+        // Operations queued on a dispatch thread may be using the arrays about to be spilled, see Scope#async.
+        var scope = Scope.current();
+        if (scope != null) {
+            scope.drain();
+        }
+        af.deviceGc();
+        if (tryRun(fn)) {
+            return;
+        }
+        var candidates = idle(Scope.trackedArrays(), frame.floor);
+        long spilledBytes = 0;
+        long retryBytes = 0;
+        for (var array : candidates) {
+            spilledBytes += spill(array);
+            // Retry whenever the spilled bytes double, rather than after every array.
+            if (spilledBytes >= 2 * retryBytes) {
+                retryBytes = spilledBytes;
+                af.deviceGc();
+                if (tryRun(fn)) {
+                    return;
+                }
+            }
+        }
+        af.deviceGc();
+        fn.run();
+    }
+
+    /**
+     * Spills idle arrays from the given ones, least recently used first, until the given condition holds. Returns
+     * whether it holds.
+     */
+    static boolean spillUntil(Collection<Array<?, ?>> arrays, BooleanSupplier done) {
+        var frame = frames.get();
+        // Outside any operation, no native call can be holding a handle.
+        var floor = frame.depth == 0 ? Long.MAX_VALUE : frame.floor;
+        for (var array : idle(arrays, floor)) {
+            if (done.getAsBoolean()) {
+                return true;
+            }
+            spill(array);
+        }
+        return done.getAsBoolean();
+    }
+
+    private static List<Array<?, ?>> idle(Collection<Array<?, ?>> arrays, long floor) {
+        return arrays
+                   .stream()
+                   .filter(array -> spillable(array, floor))
+                   .sorted(Comparator.comparingLong(Array::lastUse))
+                   .toList();
+    }
+
+    private static boolean tryRun(Runnable fn) {
+        try {
+            fn.run();
+            return true;
+        } catch (ArrayFireException e) {
+            if (e.status() != Status.AF_ERR_NO_MEM) {
+                throw e;
+            }
+            return false;
+        }
+    }
+
+    private static boolean spillable(Array<?, ?> array, long floor) {
+        if (array instanceof ErrorArray || array.spilled() != null || !array.materialized() ||
+                array.lastUse() >= floor) {
+            return false;
+        }
+        // Spilling a handle that shares its buffer with another wouldn't free anything. Reads the handle directly, since
+        // dereferencing would mark the array as used.
+        try (var scratch = Scratch.open()) {
+            var result = scratch.allocate(ValueLayout.JAVA_INT);
+            var handle = array.segment().get(Array.LAYOUT, 0L);
+            ArrayFire.handleStatus(() -> arrayfire_h.af_get_data_ref_count(result, handle));
+            return result.get(ValueLayout.JAVA_INT, 0) == 1;
+        }
+    }
+
+    /**
+     * Copies the array to pinned host memory and releases it on the device, returning the number of bytes moved.
+     */
+    static long spill(Array<?, ?> array) {
+        var handle = array.segment().get(Array.LAYOUT, 0L);
+        var bytes = array.bytes();
+        var host = af.allocPinned(bytes);
+        try {
+            ArrayFire.handleStatus(() -> arrayfire_h.af_get_data_ptr(host, handle));
+        } catch (ArrayFireException e) {
+            // E.g. evaluating a JIT node needs memory we don't have, so leave it on the device.
+            af.freePinned(host);
+            return 0;
+        }
+        ArrayFire.handleStatus(() -> arrayfire_h.af_release_array(handle));
+        array.segment().set(Array.LAYOUT, 0L, MemorySegment.NULL);
+        array.spilled(host);
+        if (array.owner() != null && array.accounted()) {
+            array.owner().account(-bytes);
+        }
+        return bytes;
+    }
+
+    /**
+     * Copies a spilled array back to the device.
+     */
+    static void restore(Array<?, ?> array) {
+        var host = array.spilled();
+        ArrayFire.handleStatus(() -> arrayfire_h.af_create_array(array.segment(), host, array.shape().ndims(),
+            Scratch.current().allocateArray(ValueLayout.JAVA_LONG, array.shape().dims()), array.type().code()));
+        array.spilled(null);
+        af.freePinned(host);
+        if (array.owner() != null && array.accounted()) {
+            array.owner().account(array.bytes());
+        }
+    }
+
+    /**
+     * Frees the host copy of a spilled array that is being released.
+     */
+    static void discard(Array<?, ?> array) {
+        af.freePinned(array.spilled());
+        array.spilled(null);
+    }
+}
@@ -0,0 +1,251 @@
+package arrayfire;
+
+import arrayfire.utils.IdentityHashSet;
+
+import java.util.*;
+
+/**
+ * An append-only record of the operations registered in a scope, in registration order. Since an operation can only
+ * consume arrays that already exist, the order of the tape is a topological order of the graph, so gradients can be
+ * computed with a single reverse sweep.
+ */
+@SuppressWarnings("rawtypes")
+public class Tape {
+
+    private final List<Operation> operations = new ArrayList<>();
+    private final Set<Params> params = IdentityHashSet.create();
+
+    Tape() {
+    }
+
+    Tape(List<Operation> operations) {
+        operations.forEach(this::record);
+    }
+
+    void record(Operation operation) {
+        operations.add(operation);
+        for (var input : operation.inputs()) {
+            if (input instanceof Params p) {
+                params.add(p);
+            }
+        }
+    }
+
+    public List<Operation> operations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    /**
+     * Returns all params that have been used as an input to an operation on this tape.
+     */
+    public Set<Params> params() {
+        return Collections.unmodifiableSet(params);
+    }
+
+    /**
+     * Returns the arrays read by operations on this tape that weren't produced by one of them, in the order they are
+     * first read.
+     */
+    public List<Array> externalInputs() {
+        var produced = IdentityHashSet.<Array>create();
+        var seen = IdentityHashSet.<Array>create();
+        var inputs = new ArrayList<Array>();
+        for (var operation : operations) {
+            for (var input : operation.inputs()) {
+                if (!produced.contains(input) && seen.add(input)) {
+                    inputs.add(input);
+                }
+            }
+            produced.addAll(operation.outputs());
+        }
+        return inputs;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void optimize(Array loss) {
+        var targets = params.toArray(Params[]::new);
+        var grads = grads(loss, targets);
+        for (var p : targets) {
+            p.optimize(grads.get(p));
+        }
+    }
+
+    public <T extends Array<?, ?>> T grads(Array loss, T tensor) {
+        var grads = grads(loss, new Array[]{tensor});
+        return grads.get(tensor);
+    }
+
+    /**
+     * Computes the gradients of the given arrays with respect to the loss, visiting each operation at most once.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public Graph.Grads grads(Array loss, Array... arrays) {
+        return gradsFrom(loss, ArrayFire.constant(loss.type(), 1).tileAs(loss), arrays);
+    }
+
+    /**
+     * Computes the gradients of the given arrays, given the gradients of the loss itself, e.g. the gradients flowing
+     * into a block of operations from the rest of a larger graph.
+     * <p>
+     * In an eager scope, each intermediate gradient is released as soon as the last gradient rule reading it has run,
+     * including partial sums of gradients that are accumulated from several consumers.
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public Graph.Grads gradsFrom(Array loss, Array lossGrads, Array... arrays) {
+        var end = operations.size();
+        var reachable = reachableFrom(arrays, end);
+        var gradsByOutput = new IdentityHashMap<Array, Array>();
+        var liveness = new Liveness(end, lossGrads, arrays);
+        gradsByOutput.put(loss, lossGrads);
+        liveness.reference(lossGrads);
+        // Gradient functions register new operations onto the end of the tape, which we don't need to visit.
+        for (int i = end - 1; i >= 0; i--) {
+            var node = operations.get(i);
+            if (!anyContained(node.outputs(), gradsByOutput.keySet())) {
+                continue;
+            }
+            if (anyContained(node.inputs(), reachable)) {
+                if (node.grads() == null) {
+                    throw new IllegalStateException(String.format(
+                        "Attempting to compute the gradient of through a '%s' operation, but it does not support gradient propagation.",
+                        node.name()));
+                }
+                var outputGrads = node.outputs().stream().map(gradsByOutput::get).toList();
+                var inputGrads = node.grads() instanceof GradFunction.Selective selective ?
+                                     selective.grads(outputGrads, reachable::contains) :
+                                     node.grads().grads(outputGrads);
+                for (var j = 0; j < node.inputs().size(); j++) {
+                    var input = node.inputs().get(j);
+                    var inputGrad = (Array) inputGrads.get(j);
+                    if (inputGrad == null) {
+                        continue;
+                    }
+                    var existing = gradsByOutput.get(input);
+                    if (existing == null) {
+                        gradsByOutput.put(input, inputGrad);
+                        liveness.reference(inputGrad);
+                    } else {
+                        var sum = ArrayFire.add(existing, inputGrad);
+                        gradsByOutput.put(input, sum);
+                        liveness.reference(sum);
+                        liveness.unreference(existing);
+                        // Only read by the sum, unless another input or output still refers to it.
+                        liveness.unreference(inputGrad);
+                    }
+                }
+            }
+            // Every consumer of these outputs comes later on the tape and has already been visited.
+            for (var output : node.outputs()) {
+                if (!liveness.requested(output) && gradsByOutput.containsKey(output)) {
+                    liveness.unreference(gradsByOutput.remove(output));
+                }
+            }
+            liveness.release();
+        }
+
+        var grads = new Graph.Grads();
+        for (var tensor : arrays) {
+            if (!gradsByOutput.containsKey(tensor)) {
+                throw new IllegalStateException(
+                    String.format("There is no path in the graph from %s to the given loss %s", tensor, loss));
+            }
+            grads.put(tensor, gradsByOutput.get(tensor));
+        }
+        return grads;
+    }
+
+    /**
+     * Counts the references to each gradient from the gradients being propagated, and releases the gradients that are
+     * no longer referenced once the current operation has been visited, if only the backward pass could have read them.
+     */
+    private class Liveness {
+        private final Map<Array, Integer> references = new IdentityHashMap<>();
+        private final Set<Array> unreferenced = IdentityHashSet.create();
+        private final Set<Array> forward = IdentityHashSet.create();
+        private final Set<Array> requested = IdentityHashSet.create();
+        private final Array lossGrads;
+        private final Scope scope = Scope.current();
+
+        Liveness(int end, Array lossGrads, Array[] arrays) {
+            this.lossGrads = lossGrads;
+            requested.addAll(Arrays.asList(arrays));
+            // Gradient rules may return arrays from the forward pass (e.g. an input), which must never be released.
+            for (int i = 0; i < end; i++) {
+                forward.addAll(operations.get(i).inputs());
+                forward.addAll(operations.get(i).outputs());
+            }
+        }
+
+        boolean requested(Array array) {
+            return requested.contains(array);
+        }
+
+        void reference(Array grads) {
+            references.merge(grads, 1, Integer::sum);
+        }
+
+        void unreference(Array grads) {
+            references.computeIfPresent(grads, (array, count) -> count == 1 ? null : count - 1);
+            unreferenced.add(grads);
+        }
+
+        void release() {
+            for (var grads : unreferenced) {
+                // Lazy scopes haven't executed the operations reading the gradient yet.
+                if (!references.containsKey(grads) && scope != null && !scope.lazy() && grads != lossGrads &&
+                        !forward.contains(grads) && scope.owns(grads)) {
+                    grads.release();
+                }
+            }
+            unreferenced.clear();
+        }
+    }
+
+    /**
+     * Returns the arrays that lie on a path from any of the given arrays to the loss.
+     */
+    public Set<Array> prune(Array loss, Array... arrays) {
+        var end = operations.size();
+        var reachable = reachableFrom(arrays, end);
+        var contributing = IdentityHashSet.<Array>create();
+        contributing.add(loss);
+        for (int i = end - 1; i >= 0; i--) {
+            var node = operations.get(i);
+            if (anyContained(node.outputs(), contributing)) {
+                contributing.addAll(node.inputs());
+            }
+        }
+        for (var tensor : arrays) {
+            if (!contributing.contains(tensor)) {
+                throw new IllegalStateException(
+                    String.format("There is no path in the graph from %s to the given loss %s", tensor, loss));
+            }
+        }
+        contributing.retainAll(reachable);
+        return contributing;
+    }
+
+    /**
+     * Returns the given arrays and every array computed from them by the first {@code end} operations.
+     */
+    private Set<Array> reachableFrom(Array[] arrays, int end) {
+        var reachable = IdentityHashSet.<Array>create();
+        reachable.addAll(Arrays.asList(arrays));
+        for (int i = 0; i < end; i++) {
+            var node = operations.get(i);
+            if (anyContained(node.inputs(), reachable)) {
+                reachable.addAll(node.outputs());
+            }
+        }
+        return reachable;
+    }
+
+    private static boolean anyContained(List<Array> arrays, Set<Array> set) {
+        for (var array : arrays) {
+            if (set.contains(array)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -29,6 +29,11 @@ public class Functions {
     R apply(A a, B b, C c);
   }
 
+  @FunctionalInterface
+  public interface ToIntFunction3<A, B, C> {
+    int applyAsInt(A a, B b, C c);
+  }
+
   @FunctionalInterface
   public interface Consumer<A> {
     void consume(A a);
@@ -57,15 +57,12 @@ public record Dataset(HostArray<U8, Byte, Shape<I, N, U, U>> images, HostArray<U
             if (rows != 28 || cols != 28) {
                 throw new IllegalStateException(String.format("Expected 28x28 but rows/cols where %s/%s", rows, cols));
             }
-            while (byteIndex < data.length) {
-                for (int i = 0; i < rows; i++) {
-                    for (int j = 0; j < cols; j++) {
-                        images.set(shape.offset(i * rows + j, imageIndex), data[byteIndex]);
-                        byteIndex++;
-                    }
-                }
-                imageIndex++;
-            }
+            // Images are stored row by row, one after the other, which is the layout of our shape.
+            var count = (data.length - byteIndex) / IMAGE_SIZE;
+            af.U8
+                .meta()
+                .copyFromHeap(data, byteIndex, images.segment(), shape.offset(0, imageIndex), count * IMAGE_SIZE);
+            imageIndex += count;
         }
         return images;
     }
@@ -75,15 +72,13 @@ public record Dataset(HostArray<U8, Byte, Shape<I, N, U, U>> images, HostArray<U
         var labels = af.createHost(af.U8, shape);
         var labelIndex = 0;
         for (byte[] data : datas) {
-            for (int i = 8; i < data.length; i++) {
-                labels.set(labelIndex, data[i]);
-                labelIndex++;
-            }
+            af.U8.meta().copyFromHeap(data, 8, labels.segment(), labelIndex, data.length - 8);
+            labelIndex += data.length - 8;
         }
         for (int i = 0; i < labels.length(); i++) {
-            if (!(labels.get(i) <= 9 && labels.get(i) >= 0)) {
+            if (!(labels.getByte(i) <= 9 && labels.getByte(i) >= 0)) {
                 throw new IllegalStateException(
-                    String.format("Label greater than 9 or less than 0: %s", labels.get(i)));
+                    String.format("Label greater than 9 or less than 0: %s", labels.getByte(i)));
             }
         }
         return labels;
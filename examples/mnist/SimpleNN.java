@@ -10,8 +10,6 @@ import arrayfire.numbers.U;
 import arrayfire.optimizers.SGD;
 import arrayfire.utils.Functions;
 
-import java.util.stream.IntStream;
-
 /**
  * A simple 2 layer neural network for classifying MNIST digits.
  *   $ bazel run examples/mnist:SimpleNN
@@ -31,8 +29,8 @@ public class SimpleNN {
             run((imageBatch, labelBatch, train) -> {
                 var imagesF32 = imageBatch.cast(af.F32);
                 var imageNorm = af.normalize(af.center(imagesF32));
-                var hidden = af.relu(af.matmul(af.transpose(hiddenWeights), imageNorm));
-                var predict = af.softmax(af.matmul(af.transpose(weights), hidden));
+                var hidden = af.relu(af.matmulTN(hiddenWeights, imageNorm));
+                var predict = af.softmax(af.matmulTN(weights, hidden));
                 if (train) {
                     var labelsOneHot = af.oneHot(labelBatch.cast(af.S32), af.l(Dataset.LABEL_COUNT));
                     var rmsLoss = af.pow(af.sub(labelsOneHot, predict), 2);
@@ -47,47 +45,51 @@ public class SimpleNN {
     public static void run(
         Functions.Function3<Array<U8, Shape<I, N, U, U>>, Array<U8, Shape<U, N, U, U>>, Boolean, Array<U8, Shape<U, N, U, U>>> fn) {
         var mnist = Dataset.load();
-        // Sort images and labels.
-        var permutation = af.permutation(af.n(Dataset.TOTAL_COUNT));
-        var images = af.index(af.create(mnist.images()), af.span(), permutation);
-        var labels = af.index(af.create(mnist.labels()), af.span(), permutation);
-        // Split into train and test sets.
-        var trainImages = af.index(images, af.span(), af.seq(0, 60000 - 1));
-        var trainLabels = af.index(labels, af.span(), af.seq(0, 60000 - 1));
-        var testImages = af.index(images, af.span(), af.seq(60000, 70000 - 1));
-        var testLabels = af.index(labels, af.span(), af.seq(60000, 70000 - 1));
-
         var epochs = 50;
         var batchSize = 256;
+        var trainCount = 60000;
+        // Batches are uploaded one at a time while the previous one is used, rather than the whole dataset up front.
+        var trainLoader = af.dataLoader(batchSize, 0);
+        var trainImages = trainLoader.add(mnist.images(), 0, trainCount);
+        var trainLabels = trainLoader.add(mnist.labels(), 0, trainCount);
+        var testLoader = af.dataLoader(batchSize, 0);
+        var testImages = testLoader.add(mnist.images(), trainCount, Dataset.TOTAL_COUNT);
+        var testLabels = testLoader.add(mnist.labels(), trainCount, Dataset.TOTAL_COUNT);
 
-        IntStream.range(0, epochs).forEach(epoch -> {
-            var trainImageBatches = af.batch(trainImages, af.D1, batchSize);
-            var trainLabelBatches = af.batch(trainLabels, af.D1, batchSize);
-            // Train.
-            var trainCorrect = IntStream.range(0, trainImageBatches.size()).mapToLong(i -> af.tidy(() -> {
-                var trainImagesBatch = trainImageBatches.get(i).get();
-                var trainLabelsBatch = trainLabelBatches.get(i).get();
-                var predicted = fn.apply(trainImagesBatch, trainLabelsBatch, true);
-                var correct = af.sum(af.eq(predicted, trainLabelsBatch).flatten());
-                return af.data(correct).get(0);
-            })).sum();
-            // Test.
-            var testCorrect = af.tidy(() -> {
-                var testImageBatches = af.batch(testImages, af.D1, batchSize);
-                var testLabelBatches = af.batch(testLabels, af.D1, batchSize);
-                return IntStream.range(0, testImageBatches.size()).mapToLong(i -> af.tidy(() -> {
-                    var testImagesBatch = testImageBatches.get(i).get();
-                    var testLabelsBatch = testLabelBatches.get(i).get();
-                    var predicted = fn.apply(testImagesBatch, af.zeros(testLabelsBatch.type(), testLabelsBatch.shape()),
-                        false);
-                    var correct = af.sum(af.eq(predicted, testLabelsBatch).flatten());
-                    return af.data(correct).get(0);
-                })).sum();
-            });
-            System.out.printf("Epoch %s: Train: %.5f, Test: %.5f%n", epoch,
-                trainCorrect / (double) trainImages.shape().d1().size(),
-                testCorrect / (double) testImages.shape().d1().size());
-        });
-
+        // The loaders hold pinned host buffers and an upload thread until they are disposed of.
+        try {
+            for (int epoch = 0; epoch < epochs; epoch++) {
+                // Train.
+                long trainCorrect = 0;
+                var trainBatches = trainLoader.epoch();
+                while (trainBatches.hasNext()) {
+                    trainCorrect += af.tidy(() -> {
+                        var batch = trainBatches.next();
+                        var trainLabelsBatch = batch.get(trainLabels);
+                        var predicted = fn.apply(batch.get(trainImages), trainLabelsBatch, true);
+                        var correct = af.sum(af.eq(predicted, trainLabelsBatch).flatten());
+                        return af.data(correct).get(0);
+                    });
+                }
+                // Test.
+                long testCorrect = 0;
+                var testBatches = testLoader.epoch();
+                while (testBatches.hasNext()) {
+                    testCorrect += af.inference(() -> {
+                        var batch = testBatches.next();
+                        var testLabelsBatch = batch.get(testLabels);
+                        var predicted = fn.apply(batch.get(testImages),
+                            af.zeros(testLabelsBatch.type(), testLabelsBatch.shape()), false);
+                        var correct = af.sum(af.eq(predicted, testLabelsBatch).flatten());
+                        return af.data(correct).get(0);
+                    });
+                }
+                System.out.printf("Epoch %s: Train: %.5f, Test: %.5f%n", epoch, trainCorrect / (double) trainCount,
+                    testCorrect / (double) (Dataset.TOTAL_COUNT - trainCount));
+            }
+        } finally {
+            trainLoader.dispose();
+            testLoader.dispose();
+        }
     }
 }
\ No newline at end of file